@@ -5,12 +5,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -18,23 +22,29 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.conn.HttpHostConnectException;
 import org.apache.http.util.EntityUtils;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
 import testrunner.BaseJob.Status;
 import testrunner.HttpIface.HttpIfaceException;
 
-public class AgentConnection {
+public class AgentConnection implements StatusPoller.Target {
     private static final long GOOD_UPTIME_MS = 30000;
+    private static final int BATCH_SIZE = 256;
     private String url;
     private boolean online;
     private ScheduledExecutorService executor;
     private int availableCPU;
-    private List<RemoteJob> jobs;
+    private int totalCPU;
+    private Map<String, RemoteJob> jobs;
+    private Map<String, String> remoteStatus;
+    private String remoteEpoch;
+    private long remoteVersion = -1;
     private int totalJobs;
     private int totalRunningJobs;
     private ScheduledFuture<?> future;
@@ -42,6 +52,10 @@ public class AgentConnection {
     private int offlineCounter;
     private boolean autoRetry;
     private HttpIface http;
+    private Map<String, Object> uploadLocks = new ConcurrentHashMap<String, Object>();
+    private Runnable statusListener;
+    private StatusPoller poller;
+    private volatile boolean batchUnsupported;
 
     public static enum EventType {
         UP, DOWN
@@ -65,12 +79,46 @@ public class AgentConnection {
         }
     }
 
+    /**
+     * A job for scheduleJobs, either with a local job archive that is sent to
+     * the agent or with an archive that the agent downloads from the given url.
+     */
+    public static class Submission {
+        private String name;
+        private int priority;
+        private File jobArchive;
+        private Map<String, File> sharedAssets;
+        private String jobArchiveRef;
+        private String manifest;
+        private String remoteUrl;
+
+        public Submission(String name, File jobArchive, int priority, Map<String, File> sharedAssets) {
+            this.name = name;
+            this.jobArchive = jobArchive;
+            this.priority = priority;
+            this.sharedAssets = sharedAssets;
+        }
+
+        public Submission(String name, String jobArchiveRef, int priority, String manifest, String remoteUrl) {
+            this.name = name;
+            this.jobArchiveRef = jobArchiveRef;
+            this.priority = priority;
+            this.manifest = manifest;
+            this.remoteUrl = remoteUrl;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
     public AgentConnection(String url, boolean autoRetry, ScheduledExecutorService executor, HttpIface http) {
         this.url = url;
         this.autoRetry = autoRetry;
         this.executor = executor;
         this.http = http;
-        this.jobs = new ArrayList<RemoteJob>();
+        this.jobs = new HashMap<String, RemoteJob>();
+        this.remoteStatus = new HashMap<String, String>();
     }
 
     public void scheduleStatusCheck() {
@@ -80,84 +128,153 @@ public class AgentConnection {
                 try {
                     updateJobStatus();
                 } catch (Exception e) {
-                    if (online == true) {
-                        connectiondDown();
-                        if (!(e instanceof HttpHostConnectException)) {
-                            Log.error("updating job status for an agent '" + url + "'");
-                        }
-                    }
-                    online = false;
-                    ++offlineCounter;
-                    if (!(e instanceof HttpHostConnectException)) {
-                        Log.error(e);
-                    }
+                    failed(e);
                 }
             }
         }, 0, 1, TimeUnit.SECONDS);
     }
 
+    /**
+     * Leaves the polling to the poller, this takes no thread while waiting for
+     * the agent.
+     */
+    public void scheduleStatusCheck(StatusPoller poller) {
+        this.poller = poller;
+        poller.add(this);
+    }
+
+    @Override
+    public void completed(String body) {
+        boolean updateNecessary = hasUnfinishedJobs();
+        try {
+            processStatus(JsonParser.parseString(body).getAsJsonObject());
+        } catch (IOException e) {
+            if (updateNecessary)
+                failed(e);
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void failed(Exception e) {
+        boolean refused = e instanceof ConnectException || e.getCause() instanceof ConnectException;
+        if (online == true) {
+            connectiondDown();
+            if (!refused) {
+                Log.error("updating job status for an agent '" + url + "'");
+            }
+        }
+        online = false;
+        ++offlineCounter;
+        if (!refused) {
+            Log.error(e);
+        }
+    }
+
+    /**
+     * Called after every successful status poll, i.e. when the available CPU
+     * of the agent may have changed.
+     */
+    public void setStatusListener(Runnable statusListener) {
+        this.statusListener = statusListener;
+    }
+
     public void shutdown() {
         if (future != null)
             future.cancel(false);
+        if (poller != null)
+            poller.remove(this);
     }
 
     private void updateJobStatus() throws IOException, HttpIfaceException {
-        boolean updateNecessary = false;
-        for (RemoteJob remoteJob : Util.safeCopy(jobs)) {
+        boolean updateNecessary = hasUnfinishedJobs();
+        try (InputStream is = http.openUrlStream(getStatusUrl())) {
+            processStatus(JsonParser.parseReader(new InputStreamReader(is)).getAsJsonObject());
+        } catch (IOException e) {
+            if (updateNecessary)
+                throw e;
+        }
+    }
+
+    private boolean hasUnfinishedJobs() {
+        for (RemoteJob remoteJob : getJobs()) {
             Status status = remoteJob.getStatus();
             if (status != BaseJob.Status.DONE && status != BaseJob.Status.ERROR) {
-                updateNecessary = true;
-                break;
+                return true;
             }
         }
+        return false;
+    }
 
-        URL url2 = new URL(new URL(url), "/status");
-        Set<String> updated = new HashSet<String>();
+    @Override
+    public URL getStatusUrl() throws MalformedURLException {
+        return new URL(new URL(url), remoteEpoch == null ? "/status"
+                : "/status?since=" + remoteVersion + "&epoch=" + remoteEpoch);
+    }
 
-        try (InputStream is = http.openUrlStream(url2)) {
-            JsonObject jsonObject = JsonParser.parseReader(new InputStreamReader(is)).getAsJsonObject();
-            
-            if (online == false) {
-                connectionUp();
-            }
-            online = true;
-            
+    private void processStatus(JsonObject jsonObject) throws IOException, HttpIfaceException {
+        if (online == false) {
+            connectionUp();
+        }
+        online = true;
+        
+        JsonElement total = jsonObject.get("totalCPU");
+        synchronized (this) {
             availableCPU = jsonObject.get("availableCPU").getAsInt();
-            JsonElement jsonElement = jsonObject.get("jobs");
-            int newTotalJobs = 0, newTotalRunningJobs = 0;
-            for (JsonElement jsonElement2 : jsonElement.getAsJsonArray()) {
-                JsonObject asJsonObject = jsonElement2.getAsJsonObject();
-                String jobName = asJsonObject.get("name").getAsString();
-                if (updateJob(asJsonObject)) {
-                    updated.add(jobName);
-                }
-
-                newTotalJobs += 1;
-                newTotalRunningJobs += "DONE".equals(asJsonObject.get("status").getAsString()) ? 0 : 1;
+            totalCPU = total == null ? 0 : total.getAsInt();
+        }
+        // Older agents always send the full list without an epoch
+        JsonElement full = jsonObject.get("full");
+        JsonElement epoch = jsonObject.get("epoch");
+        if (full == null || full.getAsBoolean()) {
+            remoteStatus.clear();
+            totalRunningJobs = 0;
+        }
+        remoteEpoch = epoch == null ? null : epoch.getAsString();
+        remoteVersion = epoch == null ? -1 : jsonObject.get("version").getAsLong();
+
+        // The removals go first, a job may be removed and added again since
+        JsonElement removed = jsonObject.get("removed");
+        if (removed != null) {
+            for (JsonElement name : removed.getAsJsonArray()) {
+                String oldStatus = remoteStatus.remove(name.getAsString());
+                if (oldStatus != null && !"DONE".equals(oldStatus))
+                    --totalRunningJobs;
             }
+        }
 
-            for (RemoteJob remoteJob : Util.safeCopy(jobs)) {
-                if (remoteJob.getStatus() != BaseJob.Status.DONE && !remoteJob.isMissing()
-                        && !updated.contains(remoteJob.getName())) {
-                    remoteJob.incrementRetryCounter();
-                    if (remoteJob.getRetryCounter() > 60) {
-                        if (autoRetry) {
-                            Log.warn("[" + remoteJob.getName() + "] Not found on remote agent, rescheduling.");
-                            rescheduleJob(remoteJob);
-                        } else {
-                            remoteJob.setMissing(true);
-                        }
-                        remoteJob.resetRetryCounter();
+        JsonElement jsonElement = jsonObject.get("jobs");
+        for (JsonElement jsonElement2 : jsonElement.getAsJsonArray()) {
+            JsonObject asJsonObject = jsonElement2.getAsJsonObject();
+            String jobName = asJsonObject.get("name").getAsString();
+            String status = asJsonObject.get("status").getAsString();
+            updateJob(asJsonObject);
+
+            String oldStatus = remoteStatus.put(jobName, status);
+            totalRunningJobs += ("DONE".equals(status) ? 0 : 1)
+                    - (oldStatus == null || "DONE".equals(oldStatus) ? 0 : 1);
+        }
+
+        for (RemoteJob remoteJob : getJobs()) {
+            if (remoteJob.getStatus() != BaseJob.Status.DONE && !remoteJob.isMissing()
+                    && !remoteStatus.containsKey(remoteJob.getName())) {
+                remoteJob.incrementRetryCounter();
+                if (remoteJob.getRetryCounter() > 60) {
+                    if (autoRetry) {
+                        Log.warn("[" + remoteJob.getName() + "] Not found on remote agent, rescheduling.");
+                        rescheduleJob(remoteJob);
+                    } else {
+                        remoteJob.setMissing(true);
                     }
+                    remoteJob.resetRetryCounter();
                 }
             }
-
-            totalJobs = newTotalJobs;
-            totalRunningJobs = newTotalRunningJobs;
-        } catch (IOException e) {
-            if (updateNecessary)
-                throw e;
         }
+
+        totalJobs = remoteStatus.size();
+        if (statusListener != null)
+            statusListener.run();
     }
 
     private void connectionUp() {
@@ -175,22 +292,48 @@ public class AgentConnection {
     }
 
     private boolean updateJob(JsonObject job) {
-        String jobName = job.get("name").getAsString();
-        for (RemoteJob remoteJob : Util.safeCopy(jobs)) {
-            if (jobName.equals(remoteJob.getName())) {
-                remoteJob.updateStatus(job.get("status").getAsString());
-                remoteJob.updateResultArchiveRef(job.get("resultArchiveRef").getAsString());
-                remoteJob.resetRetryCounter();
-                return true;
-            }
+        return updateJob(job.get("name").getAsString(), job.get("status").getAsString(),
+                job.get("resultArchiveRef").getAsString());
+    }
+
+    /**
+     * Applies a job state change that was either polled or pushed by the agent.
+     * 
+     * @return false if this job is not known on this connection
+     */
+    public boolean updateJob(String jobName, String status, String resultArchiveRef) {
+        RemoteJob remoteJob = findJob(jobName);
+        if (remoteJob == null)
+            return false;
+        remoteJob.updateResultArchiveRef(resultArchiveRef);
+        remoteJob.updateStatus(status);
+        remoteJob.resetRetryCounter();
+        return true;
+    }
+
+    public RemoteJob findJob(String jobName) {
+        synchronized (jobs) {
+            return jobs.get(jobName);
         }
-        return false;
     }
 
-    public int getAvailableCPU() {
+    private List<RemoteJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<RemoteJob>(jobs.values());
+        }
+    }
+
+    public synchronized int getAvailableCPU() {
         return availableCPU;
     }
 
+    /**
+     * @return the number of CPUs of the agent or 0 if the agent doesn't tell
+     */
+    public synchronized int getTotalCPU() {
+        return totalCPU;
+    }
+
     public int getTotalJobs() {
         return totalJobs;
     }
@@ -207,30 +350,171 @@ public class AgentConnection {
         return online;
     }
 
-    void updateAvailableCPU(int availableCPU) {
-        this.availableCPU = availableCPU;
+    /**
+     * Takes the CPUs of a job that was just placed with the agent out of the
+     * available CPU, the next status poll replaces this with the real value.
+     */
+    synchronized void reserveCPU(int cpu) {
+        this.availableCPU = Math.max(0, availableCPU - cpu);
     }
 
     public RemoteJob scheduleJob(String name, File jobArchive, int priority) throws IOException, HttpIfaceException {
+        return scheduleJob(name, jobArchive, priority, new HashMap<String, File>());
+    }
+
+    public RemoteJob scheduleJob(String name, File jobArchive, int priority, Map<String, File> sharedAssets)
+            throws IOException, HttpIfaceException {
         if (!online)
             return RemoteJob.WAIT;
-        String fileid = uploadJobArchive(jobArchive);
-        Log.info("[" + name + "] file id:" + fileid);
-        if (!scheduleJob(name, fileid, priority))
-            return null;
+        List<String> held = holdSharedAssets(sharedAssets);
+        try {
+            String fileid = uploadJobArchive(jobArchive);
+            Log.info("[" + name + "] file id:" + fileid);
+            if (!scheduleJob(name, fileid, priority)) {
+                releaseFiles(Collections.singletonList(fileid));
+                return null;
+            }
+        } finally {
+            releaseFiles(held);
+        }
 
         RemoteJob job = new RemoteJob(name, priority, this);
         job.updateJobArchive(jobArchive);
+        job.updateSharedAssets(sharedAssets);
 
         if (job != null) {
             synchronized (jobs) {
-                jobs.add(job);
+                jobs.put(name, job);
             }
         }
 
         return job;
     }
 
+    /**
+     * Schedules many jobs with one round trip per BATCH_SIZE jobs, the job
+     * archives, if any, are sent along in the same request. With an agent that
+     * doesn't know '/newbatch' the jobs are scheduled one by one.
+     * 
+     * @return the remote job for every submission in the same order, WAIT if
+     *         the agent is offline or null if the agent refused the job
+     * @throws IOException
+     *             only if none of the jobs has reached the agent, once some
+     *             have the rest is WAIT
+     */
+    public List<RemoteJob> scheduleJobs(List<Submission> submissions) throws IOException, HttpIfaceException {
+        List<RemoteJob> result = new ArrayList<RemoteJob>();
+        try {
+            for (int i = 0; i < submissions.size(); i += BATCH_SIZE) {
+                scheduleBatch(submissions.subList(i, Math.min(submissions.size(), i + BATCH_SIZE)), result);
+            }
+        } catch (IOException | HttpIfaceException e) {
+            if (result.isEmpty())
+                throw e;
+            // The agent has the jobs before these, they must not be sent again
+            // as a whole
+            Log.error("Couldn't schedule " + (submissions.size() - result.size()) + " jobs with '" + url + "' ("
+                    + e.getMessage() + "), these will wait.");
+            while (result.size() < submissions.size()) {
+                result.add(RemoteJob.WAIT);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the remote jobs to the result as they are known, so that the ones
+     * already scheduled are there even if this fails.
+     */
+    private void scheduleBatch(List<Submission> batch, List<RemoteJob> result)
+            throws IOException, HttpIfaceException {
+        if (!online) {
+            for (int i = 0; i < batch.size(); i++) {
+                result.add(RemoteJob.WAIT);
+            }
+            return;
+        }
+        if (batchUnsupported) {
+            for (Submission submission : batch) {
+                result.add(submission.jobArchive != null
+                        ? scheduleJob(submission.name, submission.jobArchive, submission.priority,
+                                submission.sharedAssets)
+                        : scheduleJobCallback(submission.name, submission.jobArchiveRef, submission.priority,
+                                submission.manifest, submission.remoteUrl));
+            }
+            return;
+        }
+        Map<String, File> sharedAssets = new LinkedHashMap<String, File>();
+        JsonArray jobsArray = new JsonArray();
+        Map<String, File> parts = new LinkedHashMap<String, File>();
+        for (int i = 0; i < batch.size(); i++) {
+            Submission submission = batch.get(i);
+            JsonObject job = new JsonObject();
+            job.addProperty("jobName", submission.name);
+            job.addProperty("priority", submission.priority);
+            if (submission.jobArchive != null) {
+                String part = "archive" + i;
+                job.addProperty("jobArchivePart", part);
+                parts.put(part, submission.jobArchive);
+                sharedAssets.putAll(submission.sharedAssets);
+            } else {
+                job.addProperty("remoteJobArchiveRef", submission.jobArchiveRef);
+                job.addProperty("remoteUrl", submission.remoteUrl);
+                job.add("manifest", JsonParser.parseString(submission.manifest));
+            }
+            jobsArray.add(job);
+        }
+        JsonObject request = new JsonObject();
+        request.add("jobs", jobsArray);
+
+        URL batchUrl = new URL(new URL(url), "/newbatch");
+        Log.debug("Scheduling " + batch.size() + " jobs with '" + batchUrl.toExternalForm() + "'");
+        HttpResponse response;
+        String responseBody;
+        List<String> held = holdSharedAssets(sharedAssets);
+        try {
+            response = parts.isEmpty() ? http.postString(batchUrl, request.toString())
+                    : http.uploadBatch(batchUrl, request.toString(), parts);
+            responseBody = EntityUtils.toString(response.getEntity());
+        } finally {
+            releaseFiles(held);
+        }
+        JsonArray results;
+        try {
+            results = JsonParser.parseString(responseBody).getAsJsonObject().get("results").getAsJsonArray();
+        } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+            if (response.getStatusLine().getStatusCode() != 200)
+                throw new IOException("Couldn't schedule the jobs with '" + url + "': " + responseBody);
+            // An older agent answers with its status page
+            Log.warn("Agent '" + url + "' doesn't know '/newbatch', scheduling one job at a time.");
+            batchUnsupported = true;
+            scheduleBatch(batch, result);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Submission submission = batch.get(i);
+            JsonObject jobResult = results.get(i).getAsJsonObject();
+            if (!jobResult.get("success").getAsBoolean()) {
+                Log.error("[" + submission.name + "] " + JobJournal.getString(jobResult, "message"));
+                result.add(null);
+                continue;
+            }
+            RemoteJob job = new RemoteJob(submission.name, submission.priority, this);
+            if (submission.jobArchive != null) {
+                job.updateJobArchive(submission.jobArchive);
+                job.updateSharedAssets(submission.sharedAssets);
+            } else {
+                job.updateJobArchiveRef(submission.jobArchiveRef);
+                job.updateManifest(submission.manifest);
+                job.updateRemoteUrl(submission.remoteUrl);
+            }
+            synchronized (jobs) {
+                jobs.put(submission.name, job);
+            }
+            result.add(job);
+        }
+    }
+
     public RemoteJob scheduleJobCallback(String name, String jobArchiveRef, int priority, String manifest, String myUrl)
             throws IOException, HttpIfaceException {
         if (!online)
@@ -247,19 +531,40 @@ public class AgentConnection {
 
         if (job != null) {
             synchronized (jobs) {
-                jobs.add(job);
+                jobs.put(name, job);
             }
         }
 
         return job;
     }
 
+    /**
+     * Takes over a job that was scheduled with this agent before a restart,
+     * the state of the job comes with the next status poll.
+     */
+    public RemoteJob adoptJob(String name, int priority, String jobArchiveRef, String manifest, String myUrl) {
+        RemoteJob job = new RemoteJob(name, priority, this);
+        job.updateJobArchiveRef(jobArchiveRef);
+        job.updateManifest(manifest);
+        job.updateRemoteUrl(myUrl);
+        synchronized (jobs) {
+            jobs.put(name, job);
+        }
+        return job;
+    }
+
     private void rescheduleJob(RemoteJob remoteJob) throws IOException, HttpIfaceException {
         remoteJob.setStatus(BaseJob.Status.NEW);
-        String fileid = uploadJobArchive(remoteJob.getJobArchive());
-        Log.info("[" + remoteJob.getName() + "] file id:" + fileid);
-        if (!scheduleJob(remoteJob.getName(), fileid, remoteJob.getPriority())) {
-            Log.warn("[" + remoteJob.getName() + "] Couldn't reschedule a job.");
+        List<String> held = holdSharedAssets(remoteJob.getSharedAssets());
+        try {
+            String fileid = uploadJobArchive(remoteJob.getJobArchive());
+            Log.info("[" + remoteJob.getName() + "] file id:" + fileid);
+            if (!scheduleJob(remoteJob.getName(), fileid, remoteJob.getPriority())) {
+                Log.warn("[" + remoteJob.getName() + "] Couldn't reschedule a job.");
+                releaseFiles(Collections.singletonList(fileid));
+            }
+        } finally {
+            releaseFiles(held);
         }
     }
 
@@ -284,7 +589,71 @@ public class AgentConnection {
     }
 
     private String uploadJobArchive(File jobArchive) throws IOException, HttpIfaceException {
-        HttpResponse response = http.upload(new URL(new URL(url), "/upload"), jobArchive, "file");
+        String hash = FileStore.hashOf(jobArchive);
+        String claimed = claimFile(hash);
+        if (claimed != null) {
+            Log.debug("Agent '" + url + "' already has '" + jobArchive.getName() + "', skipping the upload.");
+            return claimed;
+        }
+        return upload(new URL(new URL(url), "/upload"), jobArchive);
+    }
+
+    /**
+     * Makes sure the agent keeps the shared assets until the jobs using them
+     * are created, each one is uploaded only if the agent doesn't have it yet.
+     * Either way a reference is taken that is given back with releaseFiles
+     * once the call creating the jobs is over, by then every job the agent has
+     * accepted holds a reference of its own.
+     * 
+     * @return the ids of the assets held, already released if this fails
+     */
+    private List<String> holdSharedAssets(Map<String, File> sharedAssets) throws IOException, HttpIfaceException {
+        List<String> held = new ArrayList<String>();
+        try {
+            for (Map.Entry<String, File> entry : sharedAssets.entrySet()) {
+                String id = entry.getKey();
+                Object lock = uploadLocks.computeIfAbsent(id, k -> new Object());
+                synchronized (lock) {
+                    if (claimFile(id) == null) {
+                        Log.info("Uploading shared asset '" + entry.getValue().getName() + "' to '" + url + "'.");
+                        String fileid = upload(new URL(new URL(url), "/upload?shared=true"), entry.getValue());
+                        if (fileid != null && !id.equals(fileid)) {
+                            releaseFiles(Collections.singletonList(fileid));
+                            fileid = null;
+                        }
+                        if (fileid == null) {
+                            throw new IOException("Couldn't store shared asset '" + entry.getValue().getName()
+                                    + "' with '" + url + "'.");
+                        }
+                    }
+                    held.add(id);
+                }
+            }
+        } catch (IOException | HttpIfaceException e) {
+            releaseFiles(held);
+            throw e;
+        }
+        return held;
+    }
+
+    /**
+     * Gives back the references to the files with the agent, a failure is only
+     * logged since the agent keeps the file then which is harmless.
+     */
+    private void releaseFiles(List<String> ids) {
+        for (String id : ids) {
+            try {
+                HttpResponse response = http
+                        .openConnection(new URL(new URL(url), "/download/" + id + "?option=release"));
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException | HttpIfaceException e) {
+                Log.warn("Couldn't release '" + id + "' with '" + url + "': " + e.getMessage());
+            }
+        }
+    }
+
+    private String upload(URL uploadUrl, File file) throws IOException, HttpIfaceException {
+        HttpResponse response = http.upload(uploadUrl, file, "file");
         String responseBody = EntityUtils.toString(response.getEntity());
         JsonObject jsonObject = JsonParser.parseString(responseBody).getAsJsonObject();
         if (response.getStatusLine().getStatusCode() == 200) {
@@ -295,6 +664,27 @@ public class AgentConnection {
         return null;
     }
 
+    /**
+     * Claims a reference to a file that the agent already has, this saves
+     * uploading the same content again.
+     * 
+     * @return the id of the file with the agent or null if it needs to be
+     *         uploaded
+     */
+    private String claimFile(String hash) throws IOException, HttpIfaceException {
+        HttpResponse response = http.postString(new URL(new URL(url), "/has/" + hash), "");
+        String responseBody = EntityUtils.toString(response.getEntity());
+        if (response.getStatusLine().getStatusCode() != 200)
+            return null;
+        try {
+            JsonElement id = JsonParser.parseString(responseBody).getAsJsonObject().get("id");
+            return id == null ? null : id.getAsString();
+        } catch (JsonParseException | IllegalStateException e) {
+            // An older agent that doesn't know about '/has'
+            return null;
+        }
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException, HttpIfaceException {
         if (args.length < 3) {
             System.out.println("Syntax: agentconnection <agent url> <job zip> <output zip>");
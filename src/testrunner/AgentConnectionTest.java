@@ -0,0 +1,133 @@
+package testrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.Test;
+
+import testrunner.AgentConnection.Submission;
+
+public class AgentConnectionTest {
+
+    private static class TestAgent extends BaseAgent {
+        private JobRegistry jobs;
+        private FileStore files;
+        private LeafJob.JobFactory factory;
+
+        TestAgent(JobRegistry jobs, FileStore files, File processingBase) {
+            this.jobs = jobs;
+            this.files = files;
+            this.factory = new LeafJob.JobFactory(files, processingBase);
+        }
+
+        protected Handler getStatusPage() {
+            return new StatusHandler(jobs);
+        }
+
+        protected Handler getNewJobHandler() {
+            return new NewJobHandler(factory, jobs, files);
+        }
+
+        protected Handler getNewBatchHandler() {
+            return new NewBatchHandler(factory, jobs, files);
+        }
+
+        protected Handler getDownloadHandler() {
+            return new DownloadHandler(files);
+        }
+
+        protected Handler getUploadHandler() {
+            return new UploadHandler(files);
+        }
+
+        protected Handler getHasHandler() {
+            return new HasHandler(files);
+        }
+
+        protected Handler getStatusHandler() {
+            return new StatusHandler(jobs);
+        }
+
+        protected Handler getLogHandler() {
+            return new LogHandler(jobs);
+        }
+
+        protected Handler getEventHandler() {
+            return new EventHandler(null);
+        }
+    }
+
+    private static File jobArchive(File dir, String name, String sharedId) throws Exception {
+        Map<String, Object> entries = new HashMap<String, Object>();
+        entries.put("manifest.json", "{\"shared\":[{\"name\":\"asset.bin\",\"id\":\"" + sharedId + "\"}]}");
+        entries.put("run.sh", "cat asset.bin > /dev/null\n");
+        File archive = new File(dir, name + ".zip");
+        ZipUtils.createArchive(entries, archive);
+        return archive;
+    }
+
+    @Test
+    public void testSharedAssetOutlivesFirstJob() throws Exception {
+        File dir = Files.createTempDirectory("agentconnection").toFile();
+        FileStore files = new FileStore(new File(dir, "store"));
+        files.awaitRestore();
+        JobRegistry jobs = new JobRegistry();
+
+        Server server = new Server(0);
+        MultipartConfigInjectionHandler handler = new MultipartConfigInjectionHandler();
+        handler.setHandler(new TestAgent(jobs, files, new File(dir, "processing")));
+        server.setHandler(handler);
+        server.start();
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+        try {
+            HttpIface http = new HttpIface(1000, 20000);
+            String url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+            AgentConnection agent = new AgentConnection(url, false, executor, http);
+            agent.scheduleStatusCheck();
+            for (int i = 0; i < 100 && !agent.isOnline(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(agent.isOnline());
+
+            File asset = new File(dir, "asset.bin");
+            FileUtils.writeStringToFile(asset, "the shared asset", StandardCharsets.UTF_8);
+            String sharedId = FileStore.hashOf(asset);
+            Map<String, File> sharedAssets = new HashMap<String, File>();
+            sharedAssets.put(sharedId, asset);
+            // The last one is refused as a duplicate, it must not keep the asset
+            List<RemoteJob> result = agent.scheduleJobs(Arrays.asList(
+                    new Submission("job0", jobArchive(dir, "job0", sharedId), 255, sharedAssets),
+                    new Submission("job1", jobArchive(dir, "job1", sharedId), 255, sharedAssets),
+                    new Submission("job0", jobArchive(dir, "job2", sharedId), 255, sharedAssets)));
+            assertEquals(3, result.size());
+            assertNotNull(result.get(0));
+            assertNotNull(result.get(1));
+            assertNull(result.get(2));
+
+            ((LeafJob) jobs.get("job0")).run(http);
+            assertTrue(files.has(sharedId));
+            ((LeafJob) jobs.get("job1")).run(http);
+            assertFalse(files.has(sharedId));
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
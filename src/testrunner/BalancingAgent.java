@@ -3,19 +3,25 @@ package testrunner;
 import java.awt.Component.BaselineResizeBehavior;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.FileUtils;
 
@@ -34,33 +40,63 @@ import testrunner.HttpIface.HttpIfaceException;
  */
 public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
     private ScheduledExecutorService executor;
-    private List<BaseJob> jobs = new LinkedList<BaseJob>();
+    private JobRegistry jobs = new JobRegistry();
+    private Map<String, BalancingJob> byRemoteName = new ConcurrentHashMap<String, BalancingJob>();
+    private PriorityQueue<BalancingJob> queue = new PriorityQueue<BalancingJob>(
+            Comparator.comparingInt(BalancingJob::getPriority).thenComparingLong(BalancingJob::getRegistryKey));
+    private Set<BalancingJob> queued = new HashSet<BalancingJob>();
+    private AtomicBoolean balancingRequested = new AtomicBoolean();
     private List<AgentConnection> delegates = new LinkedList<AgentConnection>();
     private FileStore files;
     private List<String> delegateUrls;
     private String myUrl;
     private long startTime;
     private HttpIface http;
+    private StatusPoller poller;
+    private Set<String> resolving = ConcurrentHashMap.newKeySet();
     private GCloudManager gcloudManager;
-    private File stateFolder;
+    private JobJournal journal;
 
-    public BalancingAgent(File agentBase, List<String> delegateUrls, String myUrl) throws HttpIfaceException {
+    public BalancingAgent(File agentBase, List<String> delegateUrls, String myUrl, boolean dedup)
+            throws HttpIfaceException {
         this.myUrl = myUrl;
         int nThreads = Runtime.getRuntime().availableProcessors();
         this.executor = Executors.newScheduledThreadPool(Math.min(64, nThreads * 8));
-        files = new FileStore(new File(agentBase, "store"));
-        stateFolder = new File(agentBase, "state");
-        if (!stateFolder.isDirectory()) {
-            if (stateFolder.exists())
-                stateFolder.delete();
-            stateFolder.mkdirs();
-        }
+        files = new FileStore(new File(agentBase, "store"), dedup);
+        journal = new JobJournal(new File(agentBase, "state"));
         this.delegateUrls = delegateUrls;
         this.http = new HttpIface(1000 /* connectionTimeout */, 20000 /* socketTimeout */);
+        this.poller = new StatusPoller(executor, 1000 /* connectionTimeout */,
+                Integer.getInteger("testrunner.status.deadline", 5000));
         this.startTime = System.currentTimeMillis();
+        jobs.addListener(new JobRegistry.Listener() {
+            @Override
+            public void jobAdded(BaseJob job) {
+                journal.update(toRecord((BalancingJob) job));
+                if (enqueue((BalancingJob) job))
+                    requestBalancing();
+            }
+
+            @Override
+            public void jobChanged(BaseJob job, Status oldStatus) {
+                journal.update(toRecord((BalancingJob) job));
+                if (job.getStatus() == Status.NEW) {
+                    if (enqueue((BalancingJob) job))
+                        requestBalancing();
+                } else
+                    dequeue((BalancingJob) job);
+            }
+
+            @Override
+            public void jobRemoved(BaseJob job) {
+                journal.remove(job.getName());
+                dequeue((BalancingJob) job);
+            }
+        });
     }
     
-    public static BalancingAgent createGCloud(File agentBase) throws IOException, GeneralSecurityException, HttpIfaceException {
+    public static BalancingAgent createGCloud(File agentBase, boolean dedup)
+            throws IOException, GeneralSecurityException, HttpIfaceException {
         List<String> delegates = new ArrayList<String>();
         String myIp = GCloudUtil.getGCloudMetaVal(GCloudUtil.META_INSTANCE_IP);
         List<Instance> instances = new GCloudUtil().getAllGCloudInstances();
@@ -74,153 +110,357 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
             }
         }
                 
-        BalancingAgent ba = new BalancingAgent(agentBase, delegates, GCloudManager.getAgentUrl(myIp));
+        BalancingAgent ba = new BalancingAgent(agentBase, delegates, GCloudManager.getAgentUrl(myIp), dedup);
         ba.gcloudManager = new GCloudManager(ba.jobs, ba.delegates, instances, myIp);
         return ba;
     }
 
-    private void doBalancing() throws IOException, HttpIfaceException {
-        List<AgentConnection> delegatesCopy = Util.safeCopy(delegates);
-        List<BaseJob> jobsCopy = Util.safeCopy(jobs);
-        Log.debug("Trying to balance " + jobsCopy.size() + " jobs.");
+    /**
+     * Adds a job to the queue of jobs waiting for a delegate unless it's
+     * already there.
+     * 
+     * @return true if the job was added
+     */
+    private boolean enqueue(BalancingJob bj) {
+        if (bj.getStatus() != Status.NEW || bj.hasDelegate())
+            return false;
+        synchronized (queue) {
+            if (!queued.add(bj))
+                return false;
+            queue.add(bj);
+        }
+        return true;
+    }
 
-        // Finding the job of the highest priority
-        List<BaseJob> unsched = jobsCopy.stream().filter(job -> !((BalancingJob) job).hasDelegate() && job.getStatus() == BaseJob.Status.NEW)
-                .collect(Collectors.toList());
-        Collections.sort(unsched, (BaseJob o1, BaseJob o2) -> Integer.compare(o1.getPriority(), o2.getPriority()));
+    private void dequeue(BalancingJob bj) {
+        synchronized (queue) {
+            if (queued.remove(bj))
+                queue.remove(bj);
+        }
+    }
 
-        int i = 0;
-        for (BaseJob baseJob : unsched) {
-            BalancingJob bj = (BalancingJob) baseJob;
-            RemoteJob remoteJob = tryDelegate(bj, delegatesCopy);
-            if (remoteJob != null) {
-                bj.updateDelegate(remoteJob);
-                Log.info("[" + bj.getName() + "@" + remoteJob.getPriority() + "] Scheduled job with remote agent '"
-                        + remoteJob.getAgent().getUrl() + "'.");
+    private BalancingJob pollQueue() {
+        synchronized (queue) {
+            BalancingJob bj = queue.poll();
+            if (bj != null)
+                queued.remove(bj);
+            return bj;
+        }
+    }
+
+    /**
+     * Runs the balancing soon, the requests made while it's pending are
+     * coalesced into one run.
+     */
+    private void requestBalancing() {
+        if (!balancingRequested.compareAndSet(false, true))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                balancingRequested.set(false);
+                try {
+                    doBalancing();
+                } catch (Exception e) {
+                    Log.error("Problem balancing");
+                    e.printStackTrace(System.out);
+                }
             }
-            if (i++ >= 9)
+        });
+    }
+
+    /**
+     * Hands the queued jobs to the delegates in the order of priority until
+     * either the jobs or the capacity run out. The jobs placed with the same
+     * delegate are sent to it in one batch.
+     */
+    private synchronized void doBalancing() throws IOException, HttpIfaceException {
+        List<AgentConnection> delegatesCopy = Util.safeCopy(delegates);
+        Log.debug("Trying to balance " + queued.size() + " jobs.");
+
+        Map<AgentConnection, List<BalancingJob>> placed = new LinkedHashMap<AgentConnection, List<BalancingJob>>();
+        Map<AgentConnection, List<AgentConnection.Submission>> submissions =
+                new LinkedHashMap<AgentConnection, List<AgentConnection.Submission>>();
+        Exception failure = null;
+        BalancingJob bj;
+        while ((bj = pollQueue()) != null) {
+            String manifest;
+            try {
+                manifest = bj.getJobManifest(files);
+            } catch (IOException e) {
+                enqueue(bj);
+                failure = e;
                 break;
+            }
+            if (manifest == null) {
+                bj.updateStatus(BaseJob.Status.ERROR);
+                Log.error("[" + bj.getName() + "] Couldn't schedule, job has not manifest.json.");
+                releaseFiles(bj);
+                continue;
+            }
+            AgentConnection delegate = tryDelegate(bj, delegatesCopy);
+            if (delegate == null) {
+                // It doesn't fit anywhere, the smaller jobs behind it wait too
+                // so that it's not starved
+                enqueue(bj);
+                break;
+            }
+            placed.computeIfAbsent(delegate, k -> new ArrayList<BalancingJob>()).add(bj);
+            submissions.computeIfAbsent(delegate, k -> new ArrayList<AgentConnection.Submission>())
+                    .add(new AgentConnection.Submission(
+                            bj.getName() + String.format("_bal%06d", (int) (Math.random() * 1000000)),
+                            bj.getJobArchiveRef(), bj.getPriority(), manifest, myUrl));
         }
+
+        for (Map.Entry<AgentConnection, List<BalancingJob>> entry : placed.entrySet()) {
+            AgentConnection delegate = entry.getKey();
+            List<BalancingJob> batch = entry.getValue();
+            List<RemoteJob> remoteJobs;
+            try {
+                remoteJobs = delegate.scheduleJobs(submissions.get(delegate));
+            } catch (IOException | HttpIfaceException e) {
+                for (BalancingJob job : batch) {
+                    enqueue(job);
+                }
+                failure = e;
+                continue;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                BalancingJob job = batch.get(i);
+                RemoteJob remoteJob = remoteJobs.get(i);
+                if (remoteJob == null || remoteJob == RemoteJob.WAIT) {
+                    enqueue(job);
+                    continue;
+                }
+                job.updateDelegate(remoteJob);
+                byRemoteName.put(remoteJob.getName(), job);
+                journal.update(toRecord(job));
+                Log.info("[" + job.getName() + "@" + remoteJob.getPriority() + "] Scheduled job with remote agent '"
+                        + delegate.getUrl() + "'.");
+            }
+        }
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof HttpIfaceException)
+            throw (HttpIfaceException) failure;
     }
 
-    private RemoteJob tryDelegate(BalancingJob job, List<AgentConnection> tmp) throws IOException, HttpIfaceException {
+    /**
+     * Picks the delegate that has the least available CPU that still fits the
+     * CPU requirement of the job (best fit), so the large delegates are kept
+     * for the large jobs. The CPUs are reserved locally right away so that
+     * many jobs can be placed before the next status poll.
+     * 
+     * @return null if the job doesn't fit anywhere at the moment
+     */
+    private AgentConnection tryDelegate(BalancingJob job, List<AgentConnection> tmp) {
         Log.debug("[" + job.getName() + "] Trying to balance");
-        int bestCapacity = 0;
+        int bestCapacity = Integer.MAX_VALUE;
+        int bestCpuReq = 0;
         AgentConnection bestDelegate = null;
         for (AgentConnection delegate : tmp) {
             if (!delegate.isServing())
                 continue;
             int capacity = delegate.getAvailableCPU();
-            if (capacity > bestCapacity) {
+            // A job that wants more than the whole agent runs on all of it
+            int cpuReq = delegate.getTotalCPU() > 0 ? Math.min(job.getCpuReq(), delegate.getTotalCPU())
+                    : job.getCpuReq();
+            if (capacity > 0 && capacity >= cpuReq && capacity < bestCapacity) {
                 bestCapacity = capacity;
+                bestCpuReq = cpuReq;
                 bestDelegate = delegate;
             }
         }
-        if (bestCapacity > 0 && bestDelegate != null) {
-            tmp.remove(bestDelegate);
-            String jobManifest = job.getJobManifest(files);
-            if (jobManifest == null) {
-                job.updateStatus(BaseJob.Status.ERROR);
-                Log.error("[" + job.getName() + "] Couldn't schedule, job has not manifest.json.");
-                return null;
-            }
-            RemoteJob scheduleJob = bestDelegate.scheduleJobCallback(
-                    job.getName() + String.format("_bal%06d", (int) (Math.random() * 1000000)), job.getJobArchiveRef(),
-                    job.getPriority(), jobManifest, myUrl);
-            Log.debug("[" + job.getName() + "@" + job.getPriority() + "] "
-                    + (scheduleJob == null ? "is null" : "is not null"));
-            bestDelegate.updateAvailableCPU(0);
-            return scheduleJob;
-        }
-        return null;
+        if (bestDelegate != null)
+            bestDelegate.reserveCPU(bestCpuReq);
+        return bestDelegate;
     }
 
     private void resolveAgents() {
         for (String url : delegateUrls) {
-            if (hasDelegate(url))
+            if (hasDelegate(url) || !resolving.add(url))
                 continue;
             Log.debug("trying delegate at " + url);
-            try (InputStream is = http.openUrlStream(new URL(new URL(url), "/status"))) {
-                JsonObject jsonObject = JsonParser.parseReader(new InputStreamReader(is)).getAsJsonObject();
-                jsonObject.get("availableCPU").getAsInt();
-                Log.info("adding delegate at " + url);
-                AgentConnection agent = new AgentConnection(url, false, executor, http);
-                agent.scheduleStatusCheck();
-                synchronized (delegates) {
-                    delegates.add(agent);
-                }
+            try {
+                poller.get(new URL(new URL(url), "/status"), new StatusPoller.Callback() {
+                    @Override
+                    public void completed(String body) {
+                        try {
+                            JsonParser.parseString(body).getAsJsonObject().get("availableCPU").getAsInt();
+                            if (!hasDelegate(url)) {
+                                Log.info("adding delegate at " + url);
+                                addDelegate(url);
+                            }
+                        } catch (Exception e) {
+                        } finally {
+                            resolving.remove(url);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        resolving.remove(url);
+                    }
+                });
             } catch (Exception e) {
+                resolving.remove(url);
             }
         }
     }
 
-    private boolean hasDelegate(String url) {
+    private AgentConnection addDelegate(String url) {
+        AgentConnection agent = new AgentConnection(url, false, executor, http);
+        agent.setStatusListener(new Runnable() {
+            @Override
+            public void run() {
+                requestBalancing();
+            }
+        });
+        agent.scheduleStatusCheck(poller);
+        synchronized (delegates) {
+            delegates.add(agent);
+        }
+        return agent;
+    }
+
+    private AgentConnection findDelegate(String url) {
         for (AgentConnection agentConnection : Util.safeCopy(delegates)) {
             if (url.equals(agentConnection.getUrl()))
-                return true;
+                return agentConnection;
         }
-        return false;
+        return null;
+    }
+
+    private boolean hasDelegate(String url) {
+        return findDelegate(url) != null;
     }
 
     private void updateJobs() throws IOException {
-        for (BaseJob baseJob : Util.safeCopy(jobs)) {
-            BalancingJob bj = (BalancingJob) baseJob;
-            if (!bj.hasDelegate())
-                continue;
-            if (bj.getStatus() != BaseJob.Status.DONE && bj.getStatus() != BaseJob.Status.ERROR) {
-                RemoteJob delegate = bj.getDelegate();
-                if (delegate.isMissing()) {
-                    AgentConnection agent = delegate.getAgent();
-                    Log.warn("[" + bj.getName() + "] job is missing on remote agent (" + agent.getUrl()
-                            + ")after a reasonable timeout, rescheduling.");
+        for (BaseJob.Status status : new BaseJob.Status[] { Status.NEW, Status.PENDING, Status.PROCESSING }) {
+            for (BaseJob baseJob : jobs.withStatus(status)) {
+                updateJob((BalancingJob) baseJob);
+            }
+        }
+    }
+
+    private void updateJob(BalancingJob bj) throws IOException {
+        RemoteJob delegate = bj.getDelegate();
+        if (delegate == null)
+            return;
+        if (bj.getStatus() != BaseJob.Status.DONE && bj.getStatus() != BaseJob.Status.ERROR) {
+            if (delegate.isMissing()) {
+                AgentConnection agent = delegate.getAgent();
+                Log.warn("[" + bj.getName() + "] job is missing on remote agent (" + agent.getUrl()
+                        + ")after a reasonable timeout, rescheduling.");
+                rescheduleJob(bj);
+            } else if (delegate.getStatus() == BaseJob.Status.DONE) {
+                jobDone(bj);
+            } else if (delegate.getStatus() == BaseJob.Status.ERROR) {
+                jobFailed(bj);
+            } else {
+                AgentConnection agent = delegate.getAgent();
+                if (!agent.isOnline() && agent.getOfflineCounter() > 60) {
+                    Log.warn("[" + bj.getName() + "@" + bj.getPriority() + "] Agent " + agent.getUrl()
+                            + " is offline for at least " + agent.getOfflineCounter() + "s, rescheduling.");
                     rescheduleJob(bj);
-                } else if (delegate.getStatus() == BaseJob.Status.DONE) {
-                    jobDone(bj);
                 } else {
-                    AgentConnection agent = delegate.getAgent();
-                    if (!agent.isOnline() && agent.getOfflineCounter() > 60) {
-                        Log.warn("[" + bj.getName() + "@" + bj.getPriority() + "] Agent " + agent.getUrl()
-                                + " is offline for at least " + agent.getOfflineCounter() + "s, rescheduling.");
-                        rescheduleJob(bj);
-                    } else {
-                        bj.updateStatus(delegate.getStatus());
-                    }
+                    bj.updateStatus(delegate.getStatus());
                 }
             }
         }
     }
 
+    /**
+     * Handles a job state change pushed by a delegate, the job is updated right
+     * away instead of on the next status poll.
+     */
+    private boolean jobEvent(String name, String status, String resultArchiveRef) {
+        RemoteJob remoteJob = null;
+        for (AgentConnection delegate : Util.safeCopy(delegates)) {
+            if (delegate.updateJob(name, status, resultArchiveRef)) {
+                remoteJob = delegate.findJob(name);
+                break;
+            }
+        }
+        if (remoteJob == null)
+            return false;
+        BalancingJob bj = byRemoteName.get(name);
+        if (bj != null && bj.getDelegate() == remoteJob) {
+            try {
+                updateJob(bj);
+            } catch (IOException e) {
+                Log.error(e);
+            }
+        }
+        return true;
+    }
+
     private void rescheduleJob(BalancingJob bj) {
-        bj.updateStatus(BaseJob.Status.NEW);
+        RemoteJob delegate = bj.getDelegate();
+        if (delegate != null)
+            byRemoteName.remove(delegate.getName());
         bj.eraseDelegate();
+        bj.updateStatus(BaseJob.Status.NEW);
     }
 
     private void jobDone(final BalancingJob bj) throws IOException {
-        if (bj.isDownloading())
-            return;
-        bj.setDownloading(true);
+        synchronized (bj) {
+            if (bj.isDownloading())
+                return;
+            bj.setDownloading(true);
+        }
         executor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
                     File f = bj.getDelegate().getResultArchive(http);
+                    String digests = ZipUtils.getFileAsString(f, "digests.json");
+                    if (digests != null) {
+                        bj.updateDigestArchive(
+                                JobJournal.getString(JsonParser.parseString(digests).getAsJsonObject(), "archiveRef"),
+                                bj.getDelegate().getAgent().getUrl());
+                    }
                     String resultArchiveRef = files.addAsFile(f);
                     bj.updateResultArchiveRef(resultArchiveRef);
                     bj.updateStatus(BaseJob.Status.DONE);
-                    Log.info("[" + bj.getName() + "@" + bj.getPriority() + "] Deleting file '" + bj.getJobArchiveRef()
-                            + "'.");
-                    files.delete(bj.getJobArchiveRef());
+                    releaseFiles(bj);
                     bj.getDelegate().dropResultArchive();
+                    byRemoteName.remove(bj.getDelegate().getName());
                 } catch (Exception e) {
                     Log.error(
                             "[" + bj.getName() + "@" + bj.getPriority() + "] couldn't update the job status to DONE.");
                     e.printStackTrace(System.out);
                 }
                 bj.setDownloading(false);
+                requestBalancing();
             }
         });
     }
 
+    private void jobFailed(BalancingJob bj) throws IOException {
+        synchronized (bj) {
+            if (bj.getStatus() == BaseJob.Status.ERROR)
+                return;
+            bj.updateStatus(BaseJob.Status.ERROR);
+        }
+        Log.warn("[" + bj.getName() + "@" + bj.getPriority() + "] Failed on remote agent '"
+                + bj.getDelegate().getAgent().getUrl() + "'.");
+        releaseFiles(bj);
+        byRemoteName.remove(bj.getDelegate().getName());
+    }
+
+    /**
+     * Gives back the references the job holds, to its archive and its shared
+     * assets, once the job is over either way.
+     */
+    private void releaseFiles(BalancingJob bj) throws IOException {
+        for (String sharedId : BaseJob.parseSharedAssets(bj.getJobManifest(files)).values()) {
+            files.delete(sharedId);
+        }
+        Log.info("[" + bj.getName() + "@" + bj.getPriority() + "] Deleting file '" + bj.getJobArchiveRef() + "'.");
+        files.delete(bj.getJobArchiveRef());
+    }
+
     @Override
     protected Handler getStatusHandler() {
         return new StatusHandler(jobs);
@@ -231,9 +471,27 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
         return new UploadHandler(files);
     }
 
+    @Override
+    protected Handler getHasHandler() {
+        return new HasHandler(files);
+    }
+
     @Override
     protected Handler getDownloadHandler() {
-        return new DownloadHandler(files);
+        return new DownloadHandler(files, this::locateDigestArchive, http);
+    }
+
+    /**
+     * @return the url of the delegate that keeps the archive of the digested
+     *         files with this ref, null if no job knows of it
+     */
+    private String locateDigestArchive(String ref) {
+        for (BaseJob baseJob : jobs.withStatus(Status.DONE)) {
+            BalancingJob bj = (BalancingJob) baseJob;
+            if (ref.equals(bj.getDigestArchiveRef()))
+                return bj.getDigestArchiveUrl();
+        }
+        return null;
     }
 
     @Override
@@ -241,6 +499,11 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
         return new NewJobHandler(this, jobs, files);
     }
 
+    @Override
+    protected Handler getNewBatchHandler() {
+        return new NewBatchHandler(this, jobs, files);
+    }
+
     @Override
     protected Handler getStatusPage() {
         return new BalancingStatusPage(jobs, delegates, http, files, startTime);
@@ -254,15 +517,11 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
             }
         }, 0, 1, TimeUnit.SECONDS);
 
+        // Balancing is triggered by the events, this is only a safety net
         executor.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                try {
-                    doBalancing();
-                } catch (Exception e) {
-                    Log.error("Problem balancing");
-                    e.printStackTrace(System.out);
-                }
+                requestBalancing();
             }
         }, 100, 1000, TimeUnit.MILLISECONDS);
 
@@ -276,43 +535,52 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
                     e.printStackTrace(System.out);
                 }
             }
-        }, 100, 100, TimeUnit.MILLISECONDS);
+        }, 100, 1000, TimeUnit.MILLISECONDS);
         
         executor.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
                 try {
-                    dumpState();
+                    compactJournal();
                 } catch (Exception e) {
-                    Log.error("Problem dumping state");
+                    Log.error("Problem saving state");
                     e.printStackTrace(System.out);
                 }
             }
         }, 10, 10, TimeUnit.SECONDS);
     }
     
-    public void dumpState() {
-        File stateFile = new File(stateFolder, "state_" + System.currentTimeMillis() + ".json");
-        StringBuilder sb = new StringBuilder();
-        List<BaseJob> jobsCopy = Util.safeCopy(jobs);
-        sb.append("jobs: [");
-        for (BaseJob baseJob : jobsCopy) {
-            BalancingJob bj = (BalancingJob)baseJob;
-            sb.append("{");
-            sb.append("\"name\": \""             + bj.getName()                + "\",");
-            sb.append("\"priority\":\""          + bj.getPriority()            + "\",");
-            sb.append("\"cpuReq\":\""            + bj.getCpuReq()              + "\",");
-            sb.append("\"status\":\""            + bj.getStatus()              + "\",");
-            sb.append("\"jobArchiveRef:\""       + bj.getJobArchiveRef()       + "\",");
-            sb.append("\"resultArchiveRef:\""    + bj.getResultArchiveRef()    + "\",");
-            sb.append("\"remoteJobArchiveRef:\"" + bj.getRemoteJobArchiveRef() + "\",");
-            sb.append("\"remoteUrl:\""           + bj.getRemoteUrl()           + "\",");
-            if (bj.getDelegate() != null && bj.getDelegate().getAgent() != null) {
-                sb.append("\"remoteUrl:\""           + bj.getDelegate().getAgent().getUrl() + "\",");
+    private void compactJournal() throws IOException {
+        journal.compact(new JobJournal.Snapshot() {
+            @Override
+            public Collection<JsonObject> records() {
+                List<JsonObject> result = new ArrayList<JsonObject>();
+                for (BaseJob baseJob : jobs.all()) {
+                    result.add(toRecord((BalancingJob) baseJob));
+                }
+                return result;
             }
-            sb.append("}");
+        });
+    }
+
+    private JsonObject toRecord(BalancingJob bj) {
+        JsonObject record = new JsonObject();
+        record.addProperty("name", bj.getName());
+        record.addProperty("priority", bj.getPriority());
+        record.addProperty("cpuReq", bj.getCpuReq());
+        record.addProperty("status", String.valueOf(bj.getStatus()));
+        record.addProperty("jobArchiveRef", bj.getJobArchiveRef());
+        record.addProperty("resultArchiveRef", bj.getResultArchiveRef());
+        RemoteJob delegate = bj.getDelegate();
+        if (delegate != null && delegate.getAgent() != null) {
+            record.addProperty("delegateUrl", delegate.getAgent().getUrl());
+            record.addProperty("delegateJob", delegate.getName());
+        }
+        if (bj.getDigestArchiveRef() != null) {
+            record.addProperty("digestArchiveRef", bj.getDigestArchiveRef());
+            record.addProperty("digestArchiveUrl", bj.getDigestArchiveUrl());
         }
-        sb.append("]");
+        return record;
     }
 
     @Override
@@ -323,6 +591,7 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
     public static void main(String[] args) throws Exception {
         List<String> a = new ArrayList<String>(Arrays.asList(args));
         boolean isGcloud = CmdUtils.hasKen(a, "-gcloud");
+        boolean dedup = CmdUtils.hasKen(a, "-dedup");
         if (a.size() < 2) {
             printHelp();
             return;
@@ -333,30 +602,87 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
         BalancingAgent agent;
         if (isGcloud) {
             Log.info("Starting balancing agent with GCloud on port " + port);
-            agent = createGCloud(agentBase); 
+            agent = createGCloud(agentBase, dedup);
         } else {
             if (a.size() < 4) {
                 printHelp();
                 return;
             }
             List<String> delegates = FileUtils.readLines(new File(a.get(2)));
-            agent = new BalancingAgent(agentBase, delegates, a.get(3));
+            agent = new BalancingAgent(agentBase, delegates, a.get(3), dedup);
         }
         agent.restoreState();
         agent.startBalancingTasks();
         agent.startAgent(port);
     }
 
-    private void restoreState() {
-        //
-        
+    /**
+     * Brings back the jobs from the journal. The jobs that were running are
+     * taken over from their delegates where they keep running, the rest is
+     * queued again. The files of the jobs get back the references they had.
+     */
+    private void restoreState() throws IOException, InterruptedException {
+        files.awaitRestore();
+        Map<String, Integer> refs = new HashMap<String, Integer>();
+        int restored = 0;
+        for (JsonObject record : journal.load().values()) {
+            String name = record.get("name").getAsString();
+            Status status = Status.valueOf(record.get("status").getAsString());
+            String jobArchiveRef = JobJournal.getString(record, "jobArchiveRef");
+            String resultArchiveRef = JobJournal.getString(record, "resultArchiveRef");
+            String archiveRef = status == Status.DONE ? resultArchiveRef : jobArchiveRef;
+            // A failed job has given its files back
+            if (status != Status.ERROR && (archiveRef == null || !files.has(archiveRef))) {
+                Log.warn("[" + name + "] Not restoring, archive '" + archiveRef + "' is gone.");
+                continue;
+            }
+            BalancingJob bj = new BalancingJob(name, jobArchiveRef, record.get("priority").getAsInt(), http);
+            bj.updateCpuReq(record.get("cpuReq").getAsInt());
+            bj.updateResultArchiveRef(resultArchiveRef);
+            bj.updateDigestArchive(JobJournal.getString(record, "digestArchiveRef"),
+                    JobJournal.getString(record, "digestArchiveUrl"));
+            String delegateUrl = JobJournal.getString(record, "delegateUrl");
+            if (status != Status.DONE && status != Status.ERROR) {
+                String manifest = bj.getJobManifest(files);
+                if (delegateUrl != null && manifest != null) {
+                    AgentConnection agent = findDelegate(delegateUrl);
+                    if (agent == null)
+                        agent = addDelegate(delegateUrl);
+                    RemoteJob remoteJob = agent.adoptJob(JobJournal.getString(record, "delegateJob"), bj.getPriority(),
+                            jobArchiveRef, manifest, myUrl);
+                    bj.updateDelegate(remoteJob);
+                    byRemoteName.put(remoteJob.getName(), bj);
+                    bj.updateStatus(status);
+                }
+            } else {
+                bj.updateStatus(status);
+            }
+            if (bj.getStatus() == Status.DONE) {
+                countRef(refs, resultArchiveRef);
+            } else if (bj.getStatus() != Status.ERROR) {
+                countRef(refs, jobArchiveRef);
+                for (String sharedId : BaseJob.parseSharedAssets(bj.getJobManifest(files)).values()) {
+                    countRef(refs, sharedId);
+                }
+            }
+            if (jobs.add(bj))
+                ++restored;
+        }
+        files.restoreRefs(refs);
+        compactJournal();
+        Log.info("Restored " + restored + " jobs.");
+    }
+
+    private static void countRef(Map<String, Integer> refs, String id) {
+        refs.merge(id, 1, Integer::sum);
     }
 
     private static void printHelp() {
-        System.out.println("Syntax: balancingagent [-gcloud] <port> <agent base folder> [delegate_list] [my_url]");
+        System.out.println("Syntax: balancingagent [-gcloud] [-dedup] <port> <agent base folder> [delegate_list] [my_url]");
         System.out.println("  Where:");
         System.out.println("          gcloud    Resolve delegate_list and my_url from GCloud, the appropriate"
                 + " arguments will be ignored.");
+        System.out.println("          dedup     Store the files by content hash, identical files are stored once.");
     }
 
     @Override
@@ -368,4 +694,14 @@ public class BalancingAgent extends BaseAgent implements BaseJob.JobFactory {
     protected Handler getLogHandler() {
         return new LogHandler(jobs);
     }
+
+    @Override
+    protected Handler getEventHandler() {
+        return new EventHandler(new EventHandler.Listener() {
+            @Override
+            public boolean jobEvent(String name, String status, String resultArchiveRef) {
+                return BalancingAgent.this.jobEvent(name, status, resultArchiveRef);
+            }
+        });
+    }
 }
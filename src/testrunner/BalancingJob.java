@@ -14,6 +14,8 @@ public class BalancingJob extends BaseJob {
     private RemoteJob delegate;
     private boolean downloading;
     private HttpIface http;
+    private String digestArchiveRef;
+    private String digestArchiveUrl;
 
     public BalancingJob(String name, String jobArchiveRef, int priority, HttpIface http) {
         super(name, jobArchiveRef, priority);
@@ -45,6 +47,23 @@ public class BalancingJob extends BaseJob {
         this.downloading = false;
     }
 
+    /**
+     * The archive of the digested files stays with the delegate that ran the
+     * job, the client gets to it through this agent.
+     */
+    public void updateDigestArchive(String digestArchiveRef, String digestArchiveUrl) {
+        this.digestArchiveRef = digestArchiveRef;
+        this.digestArchiveUrl = digestArchiveUrl;
+    }
+
+    public String getDigestArchiveRef() {
+        return digestArchiveRef;
+    }
+
+    public String getDigestArchiveUrl() {
+        return digestArchiveUrl;
+    }
+
     public String getJobManifest(FileStore files) throws IOException {
         File file = files.get(getJobArchiveRef());
         if (file == null) {
@@ -10,9 +10,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -29,13 +27,13 @@ import testrunner.AgentConnection.Event;
 import testrunner.HttpIface.HttpIfaceException;
 
 public class BalancingStatusPage implements BaseAgent.Handler {
-    private List<BaseJob> jobs;
+    private JobRegistry jobs;
     private List<AgentConnection> delegates;
     private long startTime;
     private HttpIface http;
     private FileStore fileStore;
 
-    public BalancingStatusPage(List<BaseJob> jobs, List<AgentConnection> delegates, HttpIface http, FileStore fileStore, long startTime) {
+    public BalancingStatusPage(JobRegistry jobs, List<AgentConnection> delegates, HttpIface http, FileStore fileStore, long startTime) {
         this.jobs = jobs;
         this.delegates = delegates;
         this.http = http;
@@ -74,7 +72,7 @@ public class BalancingStatusPage implements BaseAgent.Handler {
         context.setVariable("version", new Util().getVersion());
         List<Object> agents = new ArrayList<Object>();
         int i = 0;
-        List<BaseJob> tmp = Util.safeCopy(jobs);
+        List<BaseJob> tmp = new ArrayList<BaseJob>(jobs.all());
         for (AgentConnection agentConnection : safeCopy) {
             Map<String, Object> agent = new HashMap<String, Object>();
             agent.put("url", "/proxy/" + i);
@@ -90,6 +88,7 @@ public class BalancingStatusPage implements BaseAgent.Handler {
         }
         context.setVariable("agents", agents);
         context.setVariable("unsched", unscheduled(context, tmp));
+        context.setVariable("pools", listPools());
 
         try {
             Util.processTemplate(response, context, "testrunner/balancingstatus.html");
@@ -100,17 +99,12 @@ public class BalancingStatusPage implements BaseAgent.Handler {
 
     private void rerunJob(HttpServletRequest request, HttpServletResponse response) {
         String jobName = request.getParameter("job");
-        boolean found = false;
-        for (BaseJob baseJob : Util.safeCopy(jobs)) {
-            if (jobName.equals(baseJob.getName())) {
-                Log.info("[" + jobName + "] rerunning.");
-                found = true;
-                baseJob.updateStatus(BaseJob.Status.NEW);
-                ((BalancingJob) baseJob).eraseDelegate();
-                break;
-            }
-        }
-        if (!found) {
+        BaseJob baseJob = jobName == null ? null : jobs.get(jobName);
+        if (baseJob != null) {
+            Log.info("[" + jobName + "] rerunning.");
+            ((BalancingJob) baseJob).eraseDelegate();
+            baseJob.updateStatus(BaseJob.Status.NEW);
+        } else {
             Log.info("[" + jobName + "] Couldn't rerun, job not found.");
         }
         redirectHome(response);
@@ -122,12 +116,8 @@ public class BalancingStatusPage implements BaseAgent.Handler {
     }
 
     private void wipeJobs(HttpServletResponse response) {
-        synchronized (jobs) {
-            for (ListIterator<BaseJob> it = jobs.listIterator(); it.hasNext();) {
-                BaseJob baseJob = it.next();
-                if (baseJob.getStatus() == BaseJob.Status.DONE)
-                    it.remove();
-            }
+        for (BaseJob baseJob : jobs.withStatus(BaseJob.Status.DONE)) {
+            jobs.remove(baseJob);
         }
         redirectHome(response);
     }
@@ -160,6 +150,24 @@ public class BalancingStatusPage implements BaseAgent.Handler {
         response.addHeader("Location", "/");
     }
 
+    private List<Object> listPools() {
+        List<Object> result = new ArrayList<Object>();
+        for (HttpIface.Pool pool : http.getPools()) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("name", pool.getName());
+            map.put("leased", String.valueOf(pool.getStats().getLeased()));
+            map.put("available", String.valueOf(pool.getStats().getAvailable()));
+            map.put("pending", String.valueOf(pool.getStats().getPending()));
+            map.put("max", String.valueOf(pool.getStats().getMax()));
+            map.put("requests", String.valueOf(pool.getRequests()));
+            map.put("avgWait", String.format("%.1f", pool.getAvgWaitMs()));
+            map.put("maxWait", String.format("%.1f", pool.getMaxWaitMs()));
+            map.put("timeouts", String.valueOf(pool.getTimeouts()));
+            result.add(map);
+        }
+        return result;
+    }
+
     private List<Object> listEvents(AgentConnection agentConnection) {
         List<Object> result = new ArrayList<Object>();
         List<Event> events = agentConnection.getEvents();
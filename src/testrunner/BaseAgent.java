@@ -23,12 +23,18 @@ public abstract class BaseAgent extends AbstractHandler {
             getStatusHandler().handle(request, response);
         } else if ("/upload".equals(target)) {
             getUploadHandler().handle(request, response);
+        } else if (target.startsWith("/has/")) {
+            getHasHandler().handle(request, response);
         } else if (target.startsWith("/download")) {
             getDownloadHandler().handle(request, response);
         } else if ("/new".equals(target)) {
             getNewJobHandler().handle(request, response);
+        } else if ("/newbatch".equals(target)) {
+            getNewBatchHandler().handle(request, response);
         } else if (target.startsWith("/log")) {
             getLogHandler().handle(request, response);
+        } else if ("/event".equals(target)) {
+            getEventHandler().handle(request, response);
         } else {
             getStatusPage().handle(request, response);
         }
@@ -50,11 +56,17 @@ public abstract class BaseAgent extends AbstractHandler {
 
     protected abstract Handler getNewJobHandler();
 
+    protected abstract Handler getNewBatchHandler();
+
     protected abstract Handler getDownloadHandler();
 
     protected abstract Handler getUploadHandler();
 
+    protected abstract Handler getHasHandler();
+
     protected abstract Handler getStatusHandler();
     
     protected abstract Handler getLogHandler();
+
+    protected abstract Handler getEventHandler();
 }
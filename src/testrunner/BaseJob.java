@@ -2,6 +2,14 @@ package testrunner;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 import testrunner.HttpIface.HttpIfaceException;
 
@@ -12,13 +20,22 @@ public abstract class BaseJob {
 
     private String jobArchiveRef;
     private String resultArchiveRef;
-    private Status status;
+    private volatile Status status;
     private String name;
     private String remoteJobArchiveRef;
     private String remoteUrl;
     private int priority;
     private int cpuReq;
-    
+    private volatile long version;
+    private volatile JobRegistry registry;
+    private volatile long registryKey;
+
+    /**
+     * Counts every change to any job of this agent, the status handler uses it
+     * to only send the jobs that have changed since the last poll.
+     */
+    private static final AtomicLong CHANGES = new AtomicLong();
+
     public static interface JobFactory {
         BaseJob newJob(String name, String jobArchiveRef, int priority);
         BaseJob newJob(String name, String remoteJobArchiveRef, String remoteUrl, int cpuReq, int priority);
@@ -30,6 +47,7 @@ public abstract class BaseJob {
         this.status = Status.NEW;
         this.cpuReq = 1;
         this.priority = priority;
+        this.version = CHANGES.incrementAndGet();
     }
     
     protected BaseJob(String name, String remoteJobArchiveRef, String remoteUrl, int cpuReq, int priority) {
@@ -39,6 +57,7 @@ public abstract class BaseJob {
         this.status = Status.NEW;
         this.cpuReq = cpuReq;
         this.priority = priority;
+        this.version = CHANGES.incrementAndGet();
     }
 
     public String getJobArchiveRef() {
@@ -73,22 +92,82 @@ public abstract class BaseJob {
         return priority;
     }
     
+    /**
+     * Lists the shared assets a job manifest refers to, i.e.
+     * "shared":[{"name":"vpxenc","id":"..."}]. These are stored separately
+     * from the job archive and are put into the working folder of the job
+     * under the given name.
+     * 
+     * @return a map from the file name to the id of the stored file
+     */
+    public static Map<String, String> parseSharedAssets(String manifest) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        if (manifest == null)
+            return result;
+        JsonObject jsonObject = JsonParser.parseString(manifest).getAsJsonObject();
+        JsonElement jsonElement = jsonObject.get("shared");
+        if (jsonElement == null)
+            return result;
+        JsonArray jsonArray = jsonElement.getAsJsonArray();
+        for (JsonElement jsonElement2 : jsonArray) {
+            JsonObject asset = jsonElement2.getAsJsonObject();
+            result.put(asset.get("name").getAsString(), asset.get("id").getAsString());
+        }
+        return result;
+    }
+
     public abstract InputStream getLog() throws IOException, HttpIfaceException;
 
-    protected void updateResultArchiveRef(String resultArchiveRef) {
-        this.resultArchiveRef = resultArchiveRef;
+    public long getVersion() {
+        return version;
+    }
+
+    public static long getLastVersion() {
+        return CHANGES.get();
+    }
 
+    /**
+     * A version for a change that is not a job's own, i.e. its removal.
+     */
+    static long nextVersion() {
+        return CHANGES.incrementAndGet();
     }
 
-    protected void updateStatus(Status status) {
+    protected synchronized void updateResultArchiveRef(String resultArchiveRef) {
+        this.resultArchiveRef = resultArchiveRef;
+        changed(status);
+    }
+
+    protected synchronized void updateStatus(Status status) {
+        Status oldStatus = this.status;
         this.status = status;
+        changed(oldStatus);
     }
     
     protected void updateCpuReq(int cpuReq) {
         this.cpuReq = cpuReq;
     }
     
-    protected void updateJobArchiveRef(String jobArchiveRef) {
+    protected synchronized void updateJobArchiveRef(String jobArchiveRef) {
         this.jobArchiveRef = jobArchiveRef;
+        changed(status);
+    }
+
+    long getRegistryKey() {
+        return registryKey;
+    }
+
+    void attach(JobRegistry registry, long registryKey) {
+        this.registry = registry;
+        this.registryKey = registryKey;
+    }
+
+    private void changed(Status oldStatus) {
+        long oldVersion = version;
+        version = CHANGES.incrementAndGet();
+        JobRegistry registry = this.registry;
+        if (registry != null) {
+            registry.jobChanged(this, oldStatus, oldVersion);
+        }
     }
 }
@@ -0,0 +1,328 @@
+package testrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Compares the rate-distortion curves of the two encoders of a compare run
+ * with the Bjontegaard metrics. For every stream and every metric (PSNR, VMAF,
+ * SSIM) it tells:
+ * <ul>
+ * <li>the BD-rate, the average difference in bitrate at the same quality in
+ * percent, negative when the second encoder needs fewer bits;</li>
+ * <li>the BD-metric, the average difference in quality at the same bitrate,
+ * positive when the second encoder is better.</li>
+ * </ul>
+ * Each curve is fitted with a polynomial of up to the third degree in the log
+ * of the rate and the difference is integrated over the range where the two
+ * curves overlap. The points are collected as the results come in, the
+ * streams are computed in parallel. The public API is thread safe.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class BdRate {
+    public static final String[] METRICS = { "PSNR", "VMAF", "SSIM" };
+
+    private static final String FORMAT_LINE = "%40s | %9s | %9s | %9s | %9s | %9s | %9s";
+
+    /**
+     * The points of a stream by the encoder, each one is {rate, metric...}.
+     */
+    private Map<String, List<double[]>[]> points = new TreeMap<String, List<double[]>[]>();
+
+    public static class Result {
+        private String stream;
+        private double[] bdRate;
+        private double[] bdMetric;
+
+        public Result(String stream, double[] bdRate, double[] bdMetric) {
+            this.stream = stream;
+            this.bdRate = bdRate;
+            this.bdMetric = bdMetric;
+        }
+
+        public String getStream() {
+            return stream;
+        }
+
+        /**
+         * @return in percent by the metric, NaN if the curves can't be compared
+         */
+        public double[] getBdRate() {
+            return bdRate;
+        }
+
+        /**
+         * @return by the metric, NaN if the curves can't be compared
+         */
+        public double[] getBdMetric() {
+            return bdMetric;
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public synchronized void add(String stream, int enIdx, long rate, double[] metrics) {
+        List<double[]>[] byEncoder = points.computeIfAbsent(stream,
+                k -> new List[] { new ArrayList<double[]>(), new ArrayList<double[]>() });
+        double[] point = new double[METRICS.length + 1];
+        point[0] = rate;
+        System.arraycopy(metrics, 0, point, 1, METRICS.length);
+        byEncoder[enIdx].add(point);
+    }
+
+    /**
+     * @return the results by the stream in the order of the stream names
+     */
+    public List<Result> compute() {
+        List<Map.Entry<String, List<double[]>[]>> streams;
+        synchronized (this) {
+            streams = new ArrayList<Map.Entry<String, List<double[]>[]>>();
+            for (Map.Entry<String, List<double[]>[]> entry : points.entrySet()) {
+                List<double[]>[] copy = entry.getValue().clone();
+                copy[0] = new ArrayList<double[]>(copy[0]);
+                copy[1] = new ArrayList<double[]>(copy[1]);
+                streams.add(Map.entry(entry.getKey(), copy));
+            }
+        }
+        return streams.parallelStream().map(e -> compute(e.getKey(), e.getValue())).collect(Collectors.toList());
+    }
+
+    private static Result compute(String stream, List<double[]>[] byEncoder) {
+        double[][] a = sorted(byEncoder[0]);
+        double[][] b = sorted(byEncoder[1]);
+        double[] bdRate = new double[METRICS.length];
+        double[] bdMetric = new double[METRICS.length];
+        for (int m = 0; m < METRICS.length; m++) {
+            double[] logRateA = column(a, 0, true);
+            double[] logRateB = column(b, 0, true);
+            double[] distA = column(a, m + 1, false);
+            double[] distB = column(b, m + 1, false);
+            bdRate[m] = (Math.exp(averageDelta(distA, logRateA, distB, logRateB)) - 1) * 100;
+            bdMetric[m] = averageDelta(logRateA, distA, logRateB, distB);
+        }
+        return new Result(stream, bdRate, bdMetric);
+    }
+
+    /**
+     * Fits y(x) for both curves and averages the difference between the
+     * second and the first one over the range of x the two curves share.
+     *
+     * @return NaN if either curve has less than two points or they don't
+     *         overlap
+     */
+    static double averageDelta(double[] xA, double[] yA, double[] xB, double[] yB) {
+        if (xA.length < 2 || xB.length < 2)
+            return Double.NaN;
+        double lo = Math.max(min(xA), min(xB));
+        double hi = Math.min(max(xA), max(xB));
+        if (!(hi > lo))
+            return Double.NaN;
+        Polynomial fitA = Polynomial.fit(xA, yA, Math.min(3, xA.length - 1));
+        Polynomial fitB = Polynomial.fit(xB, yB, Math.min(3, xB.length - 1));
+        if (fitA == null || fitB == null)
+            return Double.NaN;
+        return (fitB.integrate(lo, hi) - fitA.integrate(lo, hi)) / (hi - lo);
+    }
+
+    /**
+     * A least squares polynomial fit. The argument is centered and scaled
+     * before the fit to keep the equations well conditioned.
+     */
+    static class Polynomial {
+        private double[] coef;
+        private double mean;
+        private double scale;
+
+        private Polynomial(double[] coef, double mean, double scale) {
+            this.coef = coef;
+            this.mean = mean;
+            this.scale = scale;
+        }
+
+        /**
+         * @return null if the points don't define a polynomial of this degree
+         */
+        static Polynomial fit(double[] x, double[] y, int degree) {
+            double mean = 0;
+            for (double v : x)
+                mean += v;
+            mean /= x.length;
+            double scale = 0;
+            for (double v : x)
+                scale = Math.max(scale, Math.abs(v - mean));
+            if (scale == 0)
+                return null;
+
+            int n = degree + 1;
+            // The normal equations, [A | b]
+            double[][] eq = new double[n][n + 1];
+            for (int k = 0; k < x.length; k++) {
+                double t = (x[k] - mean) / scale;
+                double[] pow = new double[2 * n];
+                pow[0] = 1;
+                for (int i = 1; i < pow.length; i++)
+                    pow[i] = pow[i - 1] * t;
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++)
+                        eq[i][j] += pow[i + j];
+                    eq[i][n] += pow[i] * y[k];
+                }
+            }
+            double[] coef = solve(eq);
+            return coef == null ? null : new Polynomial(coef, mean, scale);
+        }
+
+        double integrate(double lo, double hi) {
+            return (antiderivative((hi - mean) / scale) - antiderivative((lo - mean) / scale)) * scale;
+        }
+
+        private double antiderivative(double t) {
+            double result = 0;
+            for (int i = coef.length - 1; i >= 0; i--) {
+                result = result * t + coef[i] / (i + 1);
+            }
+            return result * t;
+        }
+
+        /**
+         * Gaussian elimination with partial pivoting.
+         */
+        private static double[] solve(double[][] eq) {
+            int n = eq.length;
+            for (int col = 0; col < n; col++) {
+                int pivot = col;
+                for (int row = col + 1; row < n; row++) {
+                    if (Math.abs(eq[row][col]) > Math.abs(eq[pivot][col]))
+                        pivot = row;
+                }
+                if (Math.abs(eq[pivot][col]) < 1e-12)
+                    return null;
+                double[] tmp = eq[col];
+                eq[col] = eq[pivot];
+                eq[pivot] = tmp;
+                for (int row = col + 1; row < n; row++) {
+                    double f = eq[row][col] / eq[col][col];
+                    for (int j = col; j <= n; j++)
+                        eq[row][j] -= f * eq[col][j];
+                }
+            }
+            double[] result = new double[n];
+            for (int row = n - 1; row >= 0; row--) {
+                double sum = eq[row][n];
+                for (int j = row + 1; j < n; j++)
+                    sum -= eq[row][j] * result[j];
+                result[row] = sum / eq[row][row];
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Writes the results as CSV with the average over the streams in the last
+     * line.
+     */
+    public static void writeTable(List<Result> results, File file) throws IOException {
+        StringBuilder csv = new StringBuilder("stream");
+        for (String metric : METRICS)
+            csv.append(",bdrate_" + metric.toLowerCase());
+        for (String metric : METRICS)
+            csv.append(",bd_" + metric.toLowerCase());
+        csv.append("\n");
+        for (Result result : results) {
+            csv.append(result.getStream());
+            appendCsv(csv, result.getBdRate());
+            appendCsv(csv, result.getBdMetric());
+            csv.append("\n");
+        }
+        Result average = average(results);
+        csv.append("Average");
+        appendCsv(csv, average.getBdRate());
+        appendCsv(csv, average.getBdMetric());
+        csv.append("\n");
+        FileUtils.writeStringToFile(file, csv.toString(), StandardCharsets.UTF_8);
+    }
+
+    public static void printTable(List<Result> results, PrintStream out) {
+        out.println(String.format(FORMAT_LINE, "Stream", "BD-PSNR%", "BD-VMAF%", "BD-SSIM%", "dPSNR", "dVMAF",
+                "dSSIM"));
+        for (Result result : results) {
+            out.println(format(result));
+        }
+        out.println(format(average(results)));
+    }
+
+    /**
+     * The average of every column over the streams where it's known.
+     */
+    static Result average(List<Result> results) {
+        double[] bdRate = new double[METRICS.length];
+        double[] bdMetric = new double[METRICS.length];
+        for (int m = 0; m < METRICS.length; m++) {
+            final int idx = m;
+            bdRate[m] = results.stream().mapToDouble(r -> r.getBdRate()[idx]).filter(Double::isFinite).average()
+                    .orElse(Double.NaN);
+            bdMetric[m] = results.stream().mapToDouble(r -> r.getBdMetric()[idx]).filter(Double::isFinite)
+                    .average().orElse(Double.NaN);
+        }
+        return new Result("Average", bdRate, bdMetric);
+    }
+
+    private static String format(Result result) {
+        String stream = result.getStream();
+        return String.format(FORMAT_LINE, stream.substring(0, Math.min(40, stream.length())),
+                fmt(result.getBdRate()[0]), fmt(result.getBdRate()[1]), fmt(result.getBdRate()[2]),
+                fmt(result.getBdMetric()[0]), fmt(result.getBdMetric()[1]), fmt(result.getBdMetric()[2]));
+    }
+
+    private static String fmt(double v) {
+        return Double.isFinite(v) ? String.format("%.3f", v) : "-";
+    }
+
+    private static void appendCsv(StringBuilder csv, double[] values) {
+        for (double v : values) {
+            csv.append(",").append(Double.isFinite(v) ? String.valueOf(v) : "");
+        }
+    }
+
+    /**
+     * @return the points by the rate, one per rate
+     */
+    private static double[][] sorted(List<double[]> points) {
+        double[][] result = points.toArray(new double[0][]);
+        Arrays.sort(result, Comparator.comparingDouble(p -> p[0]));
+        List<double[]> unique = new ArrayList<double[]>();
+        for (double[] p : result) {
+            if (p[0] > 0 && (unique.isEmpty() || unique.get(unique.size() - 1)[0] != p[0]))
+                unique.add(p);
+        }
+        return unique.toArray(new double[0][]);
+    }
+
+    private static double[] column(double[][] points, int idx, boolean log) {
+        double[] result = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            result[i] = log ? Math.log(points[i][idx]) : points[i][idx];
+        }
+        return result;
+    }
+
+    private static double min(double[] values) {
+        return Arrays.stream(values).min().getAsDouble();
+    }
+
+    private static double max(double[] values) {
+        return Arrays.stream(values).max().getAsDouble();
+    }
+}
@@ -0,0 +1,52 @@
+package testrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class BdRateTest {
+
+    private static double psnr(double rate) {
+        return 10 + 3 * Math.log(rate) - 0.05 * Math.log(rate) * Math.log(rate);
+    }
+
+    @Test
+    public void testBdRate() {
+        BdRate bdRate = new BdRate();
+        for (int pt = 0; pt < 6; pt++) {
+            double rate = 10000 * Math.pow(1.6, pt);
+            double psnr = psnr(rate);
+            // In 'better' the second encoder needs 20% fewer bits for the same quality
+            bdRate.add("same", 0, (long) rate, new double[] { psnr, psnr * 2, psnr / 50 });
+            bdRate.add("same", 1, (long) rate, new double[] { psnr, psnr * 2, psnr / 50 });
+            bdRate.add("better", 0, (long) rate, new double[] { psnr, psnr * 2, psnr / 50 });
+            bdRate.add("better", 1, (long) (rate * 0.8), new double[] { psnr, psnr * 2, psnr / 50 });
+        }
+        bdRate.add("single", 0, 1000, new double[] { 30, 60, 0.9 });
+        bdRate.add("single", 1, 1000, new double[] { 31, 61, 0.91 });
+
+        List<BdRate.Result> results = bdRate.compute();
+        assertEquals("better", results.get(0).getStream());
+        assertEquals("same", results.get(1).getStream());
+        for (int m = 0; m < BdRate.METRICS.length; m++) {
+            assertEquals(-20, results.get(0).getBdRate()[m], 0.1);
+            assertTrue(results.get(0).getBdMetric()[m] > 0);
+            assertEquals(0, results.get(1).getBdRate()[m], 1e-6);
+            assertEquals(0, results.get(1).getBdMetric()[m], 1e-6);
+            assertTrue(Double.isNaN(results.get(2).getBdRate()[m]));
+        }
+        assertEquals(-10, BdRate.average(results).getBdRate()[0], 0.1);
+    }
+
+    @Test
+    public void testBdMetric() {
+        double[] logRate = { 9, 10, 11, 12 };
+        double[] dist = { 30, 33, 35.5, 37 };
+        double[] better = { 30.5, 33.5, 36, 37.5 };
+        assertEquals(0.5, BdRate.averageDelta(logRate, dist, logRate, better), 1e-9);
+        assertEquals(-0.5, BdRate.averageDelta(logRate, better, logRate, dist), 1e-9);
+    }
+}
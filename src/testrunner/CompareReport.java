@@ -0,0 +1,77 @@
+package testrunner;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes the compare report as the results come in. The page itself is written
+ * once and loads the data from '<name>_data.js' next to it, every result is
+ * appended to the data as a single line. So the report can be opened at any
+ * time during the run and nothing is held in memory or rebuilt at the end.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class CompareReport implements Closeable {
+    private Writer data;
+
+    public CompareReport(File reportFile, CompareScheduler.Descriptor descriptor) throws IOException {
+        File dataFile = new File(reportFile.getParentFile(), reportFile.getName().replaceAll("\\.html$", "") + "_data.js");
+        try (InputStream is = CompareReport.class.getClassLoader().getResourceAsStream("testrunner/report.html")) {
+            String templ = IOUtils.toString(is, StandardCharsets.UTF_8);
+            FileUtils.writeStringToFile(reportFile, templ.replace("|||DATA|||", dataFile.getName()),
+                    StandardCharsets.UTF_8);
+        }
+        data = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dataFile), StandardCharsets.UTF_8));
+        for (int i = 0; i < 2; i++) {
+            JsonObject dataset = new JsonObject();
+            dataset.addProperty("encoder", descriptor.getEncName()[i]);
+            dataset.addProperty("encoderArgs", descriptor.getProfile());
+            dataset.addProperty("maxFrames", String.valueOf(descriptor.getMaxFrames()));
+            dataset.addProperty("profile", descriptor.getProfile());
+            dataset.add("points", new JsonArray());
+            data.write("var dataset" + (i + 1) + " = " + dataset + ";\n");
+        }
+        data.flush();
+    }
+
+    public synchronized void add(CompareScheduler.JobResult jr) throws IOException {
+        CompareScheduler.JobRequest jobRequest = (CompareScheduler.JobRequest) jr.getJobRequest();
+        JsonObject point = new JsonObject();
+        point.addProperty("filename", jobRequest.getOfName());
+        point.addProperty("ptIdx", String.valueOf(jobRequest.getPtIdx()));
+        JsonArray dist = new JsonArray();
+        JsonArray rate = new JsonArray();
+        for (int i = 0; i < 3; i++) {
+            dist.add(String.valueOf(jr.getMetrics()[i]));
+            rate.add(String.valueOf(jr.getFileSize()));
+        }
+        point.add("dist", dist);
+        point.add("rate", rate);
+        point.addProperty("valid", jr.isValid());
+        data.write("dataset" + (jobRequest.getEnIdx() == 0 ? 1 : 2) + ".points.push(" + point + ");\n");
+        data.flush();
+    }
+
+    /**
+     * Marks the report complete.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        data.write("var complete = true;\n");
+        data.close();
+    }
+}
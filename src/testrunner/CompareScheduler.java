@@ -9,6 +9,7 @@ import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -28,6 +29,8 @@ import com.google.gson.JsonParser;
 
 public class CompareScheduler implements TestScheduler {
     private static final int NUM_POINTS = 13;
+    private static final int COARSE_STEP = 3;
+    private static final double DEFAULT_PRECISION = 0.5;
 
     // Package scope for the tests
     static class JobRequest extends TestScheduler.JobRequest {
@@ -36,6 +39,7 @@ public class CompareScheduler implements TestScheduler {
         private String ofName;
         private int enIdx;
         private int ptIdx;
+        private String cacheKey;
 
         public JobRequest(String jobName, File jobArchive, int priority, String stream, Descriptor descriptor, String ofName, int enIdx, int ptIdx) {
             super(jobName, jobArchive, priority);
@@ -65,6 +69,14 @@ public class CompareScheduler implements TestScheduler {
         public String getOfName() {
             return ofName;
         }
+
+        public String getCacheKey() {
+            return cacheKey;
+        }
+
+        void updateCacheKey(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
     }
 
     public static class JobResult extends TestScheduler.JobResult {
@@ -258,16 +270,233 @@ public class CompareScheduler implements TestScheduler {
         }
     }
 
+    /**
+     * Picks the points of a stream in the adaptive mode. It starts with every
+     * COARSE_STEP'th point, then a round at a time adds the points in the
+     * middle of the intervals where a curve is steeper than on average or
+     * where the curves of the two encoders cross. It stops when the BD-rate
+     * has moved less than the precision since the last round or there's
+     * nothing left to split.
+     */
+    private class Sampling {
+        private String stream;
+        private boolean[] requested = new boolean[NUM_POINTS];
+        private JobResult[][] results = new JobResult[2][NUM_POINTS];
+        private int pending;
+        private double[] lastBdRate;
+
+        public Sampling(String stream) {
+            this.stream = stream;
+        }
+
+        /**
+         * @param result
+         *            null if the job has failed
+         * @return the jobs of the next round once the current one is done
+         */
+        public List<TestScheduler.JobRequest> done(JobRequest jobRequest, JobResult result) {
+            synchronized (CompareScheduler.this) {
+                results[jobRequest.getEnIdx()][jobRequest.getPtIdx()] = result;
+                if (--pending > 0)
+                    return Collections.emptyList();
+                return next();
+            }
+        }
+
+        /**
+         * @return the jobs of the next round, the points found in the cache
+         *         are taken right away, empty when the stream is done
+         */
+        public List<TestScheduler.JobRequest> next() {
+            synchronized (CompareScheduler.this) {
+                List<TestScheduler.JobRequest> result = new ArrayList<TestScheduler.JobRequest>();
+                while (result.isEmpty()) {
+                    List<Integer> points = nextPoints();
+                    if (points.isEmpty())
+                        break;
+                    for (int pt : points) {
+                        requested[pt] = true;
+                        for (int enc = 0; enc < 2; enc++) {
+                            JobRequest jobRequest = newJobRequest(stream, enc, pt);
+                            JobResult cached = fromCache(jobRequest);
+                            if (cached != null)
+                                results[enc][pt] = cached;
+                            else
+                                result.add(jobRequest);
+                        }
+                    }
+                }
+                pending = result.size();
+                return result;
+            }
+        }
+
+        private List<Integer> nextPoints() {
+            List<Integer> points = new ArrayList<Integer>();
+            List<Integer> known = new ArrayList<Integer>();
+            for (int pt = 0; pt < NUM_POINTS; pt++) {
+                if (requested[pt])
+                    known.add(pt);
+            }
+            if (known.isEmpty()) {
+                for (int pt = 0; pt < NUM_POINTS; pt += COARSE_STEP)
+                    points.add(pt);
+                if (points.get(points.size() - 1) != NUM_POINTS - 1)
+                    points.add(NUM_POINTS - 1);
+                return points;
+            }
+
+            double[] bdRate = bdRate();
+            boolean converged = lastBdRate != null;
+            for (int m = 0; m < bdRate.length && converged; m++) {
+                converged = Double.isNaN(bdRate[m]) && Double.isNaN(lastBdRate[m])
+                        || Math.abs(bdRate[m] - lastBdRate[m]) < precision;
+            }
+            lastBdRate = bdRate;
+            if (!converged) {
+                for (int i = 1; i < known.size(); i++) {
+                    int lo = known.get(i - 1);
+                    int hi = known.get(i);
+                    if (hi - lo > 1 && needsSplit(lo, hi))
+                        points.add((lo + hi) / 2);
+                }
+            }
+            if (points.isEmpty())
+                Log.info("[" + new File(stream).getName() + "] Sampled " + known.size() + " of " + NUM_POINTS
+                        + " points.");
+            return points;
+        }
+
+        private double[] bdRate() {
+            BdRate streamBdRate = new BdRate();
+            for (int enc = 0; enc < 2; enc++) {
+                for (JobResult result : results[enc]) {
+                    if (result != null)
+                        streamBdRate.add(stream, enc, result.getFileSize(), result.getMetrics());
+                }
+            }
+            List<BdRate.Result> bdRates = streamBdRate.compute();
+            if (bdRates.isEmpty()) {
+                double[] result = new double[BdRate.METRICS.length];
+                Arrays.fill(result, Double.NaN);
+                return result;
+            }
+            return bdRates.get(0).getBdRate();
+        }
+
+        /**
+         * The interval is split when a point is missing at either end, when a
+         * curve is steeper there than on average or when the curves of the
+         * two encoders cross.
+         */
+        private boolean needsSplit(int lo, int hi) {
+            for (int enc = 0; enc < 2; enc++) {
+                if (results[enc][lo] == null || results[enc][hi] == null)
+                    return true;
+            }
+            for (int m = 0; m < BdRate.METRICS.length; m++) {
+                if (isSteep(results[0], lo, hi, m) || isSteep(results[1], lo, hi, m))
+                    return true;
+                double gapLo = gap(results[1][lo], m);
+                double gapHi = gap(results[1][hi], m);
+                if (gapLo * gapHi < 0)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return if the metric changes faster by the log of the rate between
+         *         the two points than over the whole curve
+         */
+        private boolean isSteep(JobResult[] curve, int lo, int hi, int m) {
+            JobResult first = null;
+            JobResult last = null;
+            for (JobResult result : curve) {
+                if (result == null)
+                    continue;
+                if (first == null)
+                    first = result;
+                last = result;
+            }
+            return slope(curve[lo], curve[hi], m) > slope(first, last, m);
+        }
+
+        private double slope(JobResult a, JobResult b, int m) {
+            double dRate = Math.abs(Math.log(b.getFileSize()) - Math.log(a.getFileSize()));
+            return dRate == 0 ? 0 : Math.abs(b.getMetrics()[m] - a.getMetrics()[m]) / dRate;
+        }
+
+        /**
+         * @return how far the point of the second encoder is above the curve
+         *         of the first one, NaN if the curve doesn't reach its rate
+         */
+        private double gap(JobResult point, int m) {
+            JobResult below = null;
+            JobResult above = null;
+            for (JobResult result : results[0]) {
+                if (result == null)
+                    continue;
+                if (result.getFileSize() <= point.getFileSize()
+                        && (below == null || result.getFileSize() > below.getFileSize()))
+                    below = result;
+                if (result.getFileSize() >= point.getFileSize()
+                        && (above == null || result.getFileSize() < above.getFileSize()))
+                    above = result;
+            }
+            if (below == null || above == null)
+                return Double.NaN;
+            double x = Math.log(point.getFileSize());
+            double x0 = Math.log(below.getFileSize());
+            double x1 = Math.log(above.getFileSize());
+            double y0 = below.getMetrics()[m];
+            double y1 = above.getMetrics()[m];
+            double curve = x1 == x0 ? y0 : y0 + (y1 - y0) * (x - x0) / (x1 - x0);
+            return point.getMetrics()[m] - curve;
+        }
+    }
+
     private Descriptor descriptor;
     private int priority;
     private Random random;
     private File baseFldr;
     private Map<String, String> runArgs;
+    private Map<String, String> sharedAssetIds = new HashMap<String, String>();
+    private ResultCache cache;
+    private int cachedResults;
+    private CompareReport report;
+    private BdRate bdRate = new BdRate();
+    private String template;
+    private double precision;
+    private File requestsFldr;
+    private Map<String, Sampling> sampling = new HashMap<String, Sampling>();
 
     public CompareScheduler(Descriptor descriptor, int priority, Map<String, String> runArgs) {
+        this(descriptor, priority, runArgs, null);
+    }
+
+    /**
+     * @param cache
+     *            the results of the earlier runs, the jobs found there are not
+     *            run again, may be null
+     */
+    public CompareScheduler(Descriptor descriptor, int priority, Map<String, String> runArgs, ResultCache cache) {
+        this(descriptor, priority, runArgs, cache, 0);
+    }
+
+    /**
+     * @param precision
+     *            if not 0 the points are sampled adaptively until the BD-rate
+     *            of every stream moves less than this many percent, otherwise
+     *            all the points are run
+     */
+    public CompareScheduler(Descriptor descriptor, int priority, Map<String, String> runArgs, ResultCache cache,
+            double precision) {
         this.descriptor = descriptor;
         this.priority = priority;
         this.runArgs = runArgs;
+        this.cache = cache;
+        this.precision = precision;
         this.random = new Random(System.currentTimeMillis());
     }
 
@@ -280,6 +509,9 @@ public class CompareScheduler implements TestScheduler {
         int priority = 255;
         Map<String, String> params = new HashMap<String, String>();
         Map<String, String> runArgs = new HashMap<String, String>();
+        File cacheFldr = null;
+        long cacheSize = 1024;
+        double precision = 0;
         if (args.length > 1) {
             for (int i = 1; i < args.length; i++) {
                 String arg = args[i];
@@ -292,47 +524,162 @@ public class CompareScheduler implements TestScheduler {
                     runArgs.put(split[0], split.length == 2 ? split[1] : "");
                 } else if (arg.startsWith("-p")) {
                     priority = Integer.parseInt(arg.substring(2));
+                } else if (arg.startsWith("-c")) {
+                    // keep the results between the runs in this folder
+                    cacheFldr = new File(arg.substring(2));
+                } else if (arg.startsWith("-C")) {
+                    // the size of the result cache in megabytes
+                    cacheSize = Long.parseLong(arg.substring(2));
+                } else if (arg.startsWith("-a")) {
+                    // adaptive sampling, optionally with the BD-rate precision in percent
+                    precision = arg.length() > 2 ? Double.parseDouble(arg.substring(2)) : DEFAULT_PRECISION;
                 }
             }
         }
 
         Descriptor descriptor = Descriptor.parse(file.getParentFile(), FileUtils.readFileToString(file), params);
-        return new CompareScheduler(descriptor, priority, runArgs);
+        ResultCache cache = cacheFldr == null ? null : new ResultCache(cacheFldr, cacheSize << 20);
+        return new CompareScheduler(descriptor, priority, runArgs, cache, precision);
     }
     
+    /**
+     * Starts the report, the results are added to it as they come.
+     */
     @Override
     public void init(File baseFldr) {
         this.baseFldr = baseFldr;
+        File reportFile = new File(baseFldr, "report.html");
+        try {
+            baseFldr.mkdirs();
+            report = new CompareReport(reportFile, descriptor);
+            System.out.println("Writing report to file: " + reportFile.getAbsolutePath());
+        } catch (IOException e) {
+            Log.error("Couldn't start the report '" + reportFile.getAbsolutePath() + "'.");
+            Log.error(e);
+        }
     }
 
     @Override
     public void finish(List<TestScheduler.JobResult> results) throws IOException {
-        Log.info("Generating report.");
-        File reportFile = new File(baseFldr, "report.html");
-        System.out.println("Saved report to file: " + reportFile.getAbsolutePath());
-        generateReport(results, descriptor, reportFile);
+        List<BdRate.Result> bdRates = bdRate.compute();
+        BdRate.printTable(bdRates, System.out);
+        File bdRateFile = new File(baseFldr, "report_bdrate.csv");
+        BdRate.writeTable(bdRates, bdRateFile);
+        System.out.println("Saved BD-rates to file: " + bdRateFile.getAbsolutePath());
+        if (report == null)
+            return;
+        report.close();
+        System.out.println("Saved report to file: " + new File(baseFldr, "report.html").getAbsolutePath());
+    }
+
+    /**
+     * Adds the result to the report and the valid ones to the BD-rate.
+     */
+    private void addToReport(JobResult result) {
+        JobRequest jobRequest = (JobRequest) result.getJobRequest();
+        if (result.isValid())
+            bdRate.add(new File(jobRequest.getStream()).getName(), jobRequest.getEnIdx(), result.getFileSize(),
+                    result.getMetrics());
+        if (report == null)
+            return;
+        try {
+            report.add(result);
+        } catch (IOException e) {
+            Log.error("[" + result.getJobRequest().getJobName() + "] Couldn't add the result to the report.");
+        }
     }
 
     @Override
     public List<TestScheduler.JobRequest> generateJobRequests(File requestsFldr) {
+        this.requestsFldr = requestsFldr;
         List<TestScheduler.JobRequest> result = new ArrayList<TestScheduler.JobRequest>();
         for (String stream : descriptor.getDataset()) {
+            stream = stream.trim();
+            if (precision > 0) {
+                Sampling streamSampling = new Sampling(stream);
+                sampling.put(stream, streamSampling);
+                result.addAll(streamSampling.next());
+                continue;
+            }
             for (int enc = 0; enc < 2; enc++) {
                 for (int pt = 0; pt < NUM_POINTS; pt ++) {
-                    stream = stream.trim();
-                    String fileName = new File(stream).getName();
-                    String outputBaseName = fileName.replaceAll("\\.[0-9a-zA-Z]+$", "");
-                    File encBinF = new File(descriptor.getEncBin()[enc]);
-                    
-                    String jobName = outputBaseName + "_" + pt + "_" + encBinF.getName() + "_"
-                            + String.format("%08x", random.nextInt());
-                    File jobArchive = new File(requestsFldr, jobName + ".zip");
-                    result.add(new JobRequest(jobName, jobArchive, priority, stream, descriptor, outputBaseName, enc, pt));
+                    JobRequest jobRequest = newJobRequest(stream, enc, pt);
+                    if (fromCache(jobRequest) == null)
+                        result.add(jobRequest);
                 }
             }
         }
+        if (cache != null)
+            Log.info("Found " + cachedResults + " results in the cache, " + result.size() + " jobs to run.");
         return result;
     }
+
+    private JobRequest newJobRequest(String stream, int enc, int pt) {
+        String fileName = new File(stream).getName();
+        String outputBaseName = fileName.replaceAll("\\.[0-9a-zA-Z]+$", "");
+        File encBinF = new File(descriptor.getEncBin()[enc]);
+
+        String jobName = outputBaseName + "_" + pt + "_" + encBinF.getName() + "_"
+                + String.format("%08x", random.nextInt());
+        File jobArchive = new File(requestsFldr, jobName + ".zip");
+        return new JobRequest(jobName, jobArchive, priority, stream, descriptor, outputBaseName, enc, pt);
+    }
+
+    @Override
+    public List<TestScheduler.JobRequest> followUp(TestScheduler.JobRequest jobRequest,
+            TestScheduler.JobResult result) {
+        if (precision <= 0)
+            return Collections.emptyList();
+        JobRequest compareRequest = (JobRequest) jobRequest;
+        return sampling.get(compareRequest.getStream()).done(compareRequest,
+                result instanceof JobResult && result.isValid() ? (JobResult) result : null);
+    }
+
+    /**
+     * Looks the job up in the result cache, the key is the hash of the encoder
+     * binary, the stream and the script of the job which has the point, the
+     * profile and all the arguments.
+     * 
+     * @return the result if it was found and the job needn't run, null
+     *         otherwise
+     */
+    private JobResult fromCache(JobRequest jobRequest) {
+        if (cache == null)
+            return null;
+        try {
+            File encBinF = new File(jobRequest.getDescriptor().getEncBin()[jobRequest.getEnIdx()]);
+            jobRequest.updateCacheKey(
+                    getSharedAssetId(encBinF) + "\n" + jobRequest.getStream() + "\n" + createRunScript(jobRequest));
+        } catch (IOException e) {
+            Log.error("[" + jobRequest.getJobName() + "] Couldn't look up the result cache.");
+            return null;
+        }
+        JsonObject cached = cache.get(jobRequest.getCacheKey());
+        if (cached == null)
+            return null;
+        JsonArray metricsArray = cached.get("metrics").getAsJsonArray();
+        double[] metrics = new double[metricsArray.size()];
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = metricsArray.get(i).getAsDouble();
+        }
+        JobResult result = new JobResult(jobRequest, true, "", cached.get("fileSize").getAsLong(), metrics);
+        addToReport(result);
+        ++cachedResults;
+        return result;
+    }
+
+    private void toCache(JobRequest jobRequest, JobResult result) {
+        if (cache == null || jobRequest.getCacheKey() == null)
+            return;
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.addProperty("fileSize", result.getFileSize());
+        JsonArray metrics = new JsonArray();
+        for (double metric : result.getMetrics()) {
+            metrics.add(metric);
+        }
+        jsonObject.add("metrics", metrics);
+        cache.put(jobRequest.getCacheKey(), jsonObject);
+    }
     boolean hadOutput = false;
     private static final String FORMAT_LINE = (char) 27 + "[92m%40s | %2s | %15s | %8s | %6s | %6s | %s" + (char) 27 + "[0m";
     private static final String ERROR_LINE = (char) 27 + "[91m%40s | %2s | %15s | %s (%s)" + (char) 27 + "[0m";
@@ -341,16 +688,19 @@ public class CompareScheduler implements TestScheduler {
         return str.substring(0, Math.min(len, str.length()));
     }
     
-    private List<TestScheduler.JobResult> _results = new ArrayList<TestScheduler.JobResult>();
-    
     @Override
-    public TestScheduler.JobResult processResult(TestScheduler.JobRequest jobRequest_, File resultArchive) {
-        JobRequest jobRequest = (JobRequest) jobRequest_;
-        try {
-            String vmafJson = ZipUtils.getFileAsString(resultArchive, jobRequest.getOfName() + ".vmaf.json");
-            String fileSizeRaw = ZipUtils.getFileAsString(resultArchive, "result.size");
-            String stdout = ZipUtils.getFileAsString(resultArchive, "stdout.log");
-            boolean errorFlag = ZipUtils.containsFile(resultArchive, "error.flag");
+    public TestScheduler.JobResult processResult(TestScheduler.JobRequest jobRequest, File resultArchive) {
+        JobResult result = readResult((JobRequest) jobRequest, resultArchive);
+        addToReport(result);
+        return result;
+    }
+
+    private JobResult readResult(JobRequest jobRequest, File resultArchive) {
+        try (ZipUtils.Reader reader = new ZipUtils.Reader(resultArchive)) {
+            String vmafJson = reader.getFileAsString(jobRequest.getOfName() + ".vmaf.json");
+            String fileSizeRaw = reader.getFileAsString("result.size");
+            String stdout = reader.getFileAsString("stdout.log");
+            boolean errorFlag = reader.containsFile("error.flag");
 
             if (errorFlag) {
                 printJobError(jobRequest, stdout, "remote error");
@@ -381,7 +731,7 @@ public class CompareScheduler implements TestScheduler {
                     new SimpleDateFormat("MM.dd.yyy hh:mm:ss").format(new Date())));
             
             JobResult result = new JobResult(jobRequest, true, "", fileSize, metrics);
-            _results.add(result);
+            toCache(jobRequest, result);
 
             return result;
         } catch (Exception e) {
@@ -429,46 +779,14 @@ public class CompareScheduler implements TestScheduler {
     public void createJobArchive(TestScheduler.JobRequest jobRequest_) {
         JobRequest jobRequest = (JobRequest) jobRequest_;
         try {
-            StringBuilder runSh = new StringBuilder();
-            String fileName = new File(jobRequest.getStream()).getName();
-
-            int width = workoutW(fileName);
-            int height = workoutH(fileName);
-
             File encBinF = new File(jobRequest.getDescriptor().getEncBin()[jobRequest.getEnIdx()]);
-            String diffArgs = jobRequest.getDescriptor().getDiffArgs()[jobRequest.getEnIdx()];
-
-            runSh.append("FILENAME=\"" + fileName + "\"\n");
-            runSh.append("ENC_BN=\"" + encBinF.getName() + "\"\n");
-            runSh.append("PROFILE=\"" + jobRequest.getDescriptor().getProfile() + "\"\n");
-            runSh.append("PT_IDX=\"" + jobRequest.getPtIdx() + "\"\n");
-            runSh.append("MAX_FRAMES=\"" + jobRequest.getDescriptor().getMaxFrames() + "\"\n");
-            runSh.append("OF_BN=\"" + jobRequest.getOfName() + "\"\n");
-            runSh.append("WIDTH=\"" + width + "\"\n");
-            runSh.append("HEIGHT=\"" + height + "\"\n");
-            runSh.append("CODEC=\"" + jobRequest.getDescriptor().getCodec() + "\"\n");
-            runSh.append("DF_BN=\"" + jobRequest.getOfName() + "_recon.yuv\"\n");
-            runSh.append("MODE=\"" + jobRequest.getDescriptor().getMode() + "\"\n");
-            runSh.append("EFFORT=\"" + jobRequest.getDescriptor().getEffort() + "\"\n");
-            runSh.append("EXTRA_ARGS=\"" + jobRequest.getDescriptor().getCommonArgs() + " " + diffArgs + "\"\n");
-            for (Entry<String, String> entry : runArgs.entrySet()) {
-                runSh.append("RUN_ARGS_" + entry.getKey().toUpperCase() + "=\"" + entry.getValue() + "\"\n");
-            }
-            
-            Map<String, String> profileArgs = jobRequest.getDescriptor().getProfileArgs();
-            for (Entry<String, String> entry : profileArgs.entrySet()) {
-                runSh.append("PROFILE_ARGS_" + entry.getKey() + "=\"" + entry.getValue() + "\"\n");
-            }
-
-            try (InputStream is = this.getClass().getClassLoader()
-                    .getResourceAsStream("testrunner/gcloud_remote.tpl")) {
-                runSh.append(IOUtils.toString(is));
-            }
 
             Map<String, Object> map = new HashMap<String, Object>();
-            map.put("run.sh", runSh.toString());
-            map.put("manifest.json", "{\"cpu\":3}");
-            map.put(encBinF.getName(), encBinF);            
+            map.put("run.sh", createRunScript(jobRequest));
+            String encBinId = getSharedAssetId(encBinF);
+            jobRequest.addSharedAsset(encBinId, encBinF);
+            map.put("manifest.json", "{\"cpu\":3,\"shared\":[{\"name\":\"" + encBinF.getName() + "\",\"id\":\""
+                    + encBinId + "\"}]}");
 
             ZipUtils.createArchive(map, jobRequest.getJobArchive());
             Log.info("[" + jobRequest.getJobName() + "] Created job archive.");
@@ -477,45 +795,74 @@ public class CompareScheduler implements TestScheduler {
         }
     }
     
-    private static class Dummy {}
+    private String createRunScript(JobRequest jobRequest) throws IOException {
+        StringBuilder runSh = new StringBuilder();
+        String fileName = new File(jobRequest.getStream()).getName();
+
+        int width = workoutW(fileName);
+        int height = workoutH(fileName);
+
+        File encBinF = new File(jobRequest.getDescriptor().getEncBin()[jobRequest.getEnIdx()]);
+        String diffArgs = jobRequest.getDescriptor().getDiffArgs()[jobRequest.getEnIdx()];
+
+        runSh.append("FILENAME=\"" + fileName + "\"\n");
+        runSh.append("ENC_BN=\"" + encBinF.getName() + "\"\n");
+        runSh.append("PROFILE=\"" + jobRequest.getDescriptor().getProfile() + "\"\n");
+        runSh.append("PT_IDX=\"" + jobRequest.getPtIdx() + "\"\n");
+        runSh.append("MAX_FRAMES=\"" + jobRequest.getDescriptor().getMaxFrames() + "\"\n");
+        runSh.append("OF_BN=\"" + jobRequest.getOfName() + "\"\n");
+        runSh.append("WIDTH=\"" + width + "\"\n");
+        runSh.append("HEIGHT=\"" + height + "\"\n");
+        runSh.append("CODEC=\"" + jobRequest.getDescriptor().getCodec() + "\"\n");
+        runSh.append("DF_BN=\"" + jobRequest.getOfName() + "_recon.yuv\"\n");
+        runSh.append("MODE=\"" + jobRequest.getDescriptor().getMode() + "\"\n");
+        runSh.append("EFFORT=\"" + jobRequest.getDescriptor().getEffort() + "\"\n");
+        runSh.append("EXTRA_ARGS=\"" + jobRequest.getDescriptor().getCommonArgs() + " " + diffArgs + "\"\n");
+        for (Entry<String, String> entry : runArgs.entrySet()) {
+            runSh.append("RUN_ARGS_" + entry.getKey().toUpperCase() + "=\"" + entry.getValue() + "\"\n");
+        }
+        
+        Map<String, String> profileArgs = jobRequest.getDescriptor().getProfileArgs();
+        for (Entry<String, String> entry : profileArgs.entrySet()) {
+            runSh.append("PROFILE_ARGS_" + entry.getKey() + "=\"" + entry.getValue() + "\"\n");
+        }
+
+        runSh.append(getTemplate());
+        return runSh.toString();
+    }
+
+    private synchronized String getTemplate() throws IOException {
+        if (template == null) {
+            try (InputStream is = this.getClass().getClassLoader()
+                    .getResourceAsStream("testrunner/gcloud_remote.tpl")) {
+                if (is == null)
+                    throw new IOException("No 'testrunner/gcloud_remote.tpl' on the class path.");
+                template = IOUtils.toString(is);
+            }
+        }
+        return template;
+    }
+
+    /**
+     * The id of a shared asset is the hash of its content, computed only once
+     * per file for the whole run.
+     */
+    private synchronized String getSharedAssetId(File file) throws IOException {
+        String id = sharedAssetIds.get(file.getAbsolutePath());
+        if (id == null) {
+            id = FileStore.hashOf(file);
+            sharedAssetIds.put(file.getAbsolutePath(), id);
+        }
+        return id;
+    }
+
     static void generateReport(List<TestScheduler.JobResult> results, Descriptor descriptor, File reportFile)
             throws IOException {
-        List<String> strings0 = new ArrayList<String>();
-        List<String> strings1 = new ArrayList<String>();
-
-        for (TestScheduler.JobResult jr_ : Util.safeCopy(results)) {
-            if (! (jr_ instanceof JobResult))
-                continue;
-            JobResult jr = (JobResult) jr_;
-            JobRequest jobRequest = (JobRequest) jr.getJobRequest();
-            String line = "\n{\"filename\":\"" + jobRequest.getOfName() + "\",\"ptIdx\":\"" + jobRequest.getPtIdx()
-                    + "\",\"dist\":[\"" + jr.getMetrics()[0] + "\",\"" + jr.getMetrics()[1] + "\",\"" + jr.getMetrics()[2]
-                    + "\"],\"rate\":[\"" + jr.getFileSize() + "\",\"" + jr.getFileSize() + "\",\"" + jr.getFileSize()
-                    + "\"], \"valid\":"+jr.isValid()+"}";
-            if (jobRequest.getEnIdx() == 0)
-                strings0.add(line);
-            else
-                strings1.add(line);
-        }
-        StringBuilder[] builders = { new StringBuilder(), new StringBuilder() };
-        for (int i = 0; i < 2; i++) {
-            builders[i].append("var dataset" + (i + 1) + " = `{");
-            builders[i].append("\"encoder\": \"" + descriptor.getEncName()[i] + "\",");
-            builders[i].append("\"encoderArgs\": \"" + descriptor.getProfile() + "\",");
-            builders[i].append("\"maxFrames\": \"" + descriptor.getMaxFrames() + "\",");
-            builders[i].append("\"profile\": \"" + descriptor.getProfile() + "\",");
-            builders[i].append("\"points\": [");
-            builders[i].append(i == 0 ? String.join(",", strings0) : String.join(",", strings1));
-            builders[i].append("]}`;");
-        }
-
-        try (InputStream is = (new Dummy()).getClass().getClassLoader().getResourceAsStream("testrunner/report.html")) {
-            String templ = IOUtils.toString(is);
-
-            templ = templ.replace("|||BODY0|||", builders[0].toString());
-            templ = templ.replace("|||BODY1|||", builders[1].toString());
-
-            FileUtils.writeStringToFile(reportFile, templ);
+        try (CompareReport report = new CompareReport(reportFile, descriptor)) {
+            for (TestScheduler.JobResult jr : Util.safeCopy(results)) {
+                if (jr instanceof JobResult)
+                    report.add((JobResult) jr);
+            }
         }
     }
 
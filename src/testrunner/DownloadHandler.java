@@ -1,19 +1,75 @@
 package testrunner;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.eclipse.jetty.server.Response;
 
+import testrunner.HttpIface.HttpIfaceException;
+
+/**
+ * Serves the stored files. A single range can be asked for with the 'Range:
+ * bytes=<first>-[<last>]' header so that a broken transfer can be resumed.
+ * With '?option=delete' the file is deleted once its last byte is sent, with
+ * '?option=release' it's deleted without being sent. A file the agent holds on
+ * behalf of a job is given back by the job instead.
+ *
+ * A file that is not stored here is asked for from the delegate that keeps it,
+ * if any, so that a client can get to the files kept by the agents that ran
+ * its jobs.
+ */
 public class DownloadHandler implements BaseAgent.Handler {
+    private static final Pattern RANGE = Pattern.compile("bytes=([0-9]*)-([0-9]*)");
+    private static final String[] PROXIED_HEADERS = { "Content-Length", "Content-Range", "Accept-Ranges",
+            "Content-Type" };
 
     private FileStore files;
+    private Function<String, String> locator;
+    private HttpIface http;
+    private Predicate<String> owner;
 
     public DownloadHandler(FileStore files) {
+        this(files, id -> null, null);
+    }
+
+    /**
+     * @param owner
+     *            gives back the reference a job holds to the file, false if no
+     *            job holds it
+     */
+    public DownloadHandler(FileStore files, Predicate<String> owner) {
+        this(files, id -> null, null);
+        this.owner = owner;
+    }
+
+    /**
+     * @param locator
+     *            the url of the delegate that keeps a file not stored here,
+     *            null if none does
+     */
+    public DownloadHandler(FileStore files, Function<String, String> locator, HttpIface http) {
         this.files = files;
+        this.locator = locator;
+        this.http = http;
+        this.owner = id -> false;
     }
 
     public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
@@ -23,14 +79,118 @@ public class DownloadHandler implements BaseAgent.Handler {
         String id = pathInfo.replaceAll("^/download/", "");
         String option = request.getParameter("option");
 
-        if (!files.has(id)) {
-            response.setStatus(404);
+        File file = files.get(id);
+        if (file == null) {
+            if (!proxy(id, option, request.getHeader("Range"), response))
+                response.setStatus(404);
+            return;
+        }
+        if ("release".equals(option)) {
+            Log.info("Releasing file '" + id + "'");
+            release(id);
+            response.setStatus(200);
+            return;
+        }
+        long length = file.length();
+        long first = 0;
+        long last = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range.trim());
+            if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                if (matcher.group(1).isEmpty()) {
+                    // The suffix form, i.e. the last N bytes
+                    first = Math.max(0, length - Long.parseLong(matcher.group(2)));
+                } else {
+                    first = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty())
+                        last = Math.min(last, Long.parseLong(matcher.group(2)));
+                }
+                if (first > last) {
+                    response.setStatus(416);
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    return;
+                }
+            }
+        }
+        long count = last - first + 1;
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setContentType("application/octet-stream");
+        response.setHeader("Content-Length", String.valueOf(count));
+        if (count != length) {
+            response.setStatus(206);
+            response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
         } else {
             response.setStatus(200);
-            FileUtils.copyFile(files.get(id), response.getOutputStream());
-            if ("delete".equals(option)) {
-                Log.info("Deleting file '" + id + "'");
-                files.delete(id);
+        }
+        send(file, first, count, response);
+
+        if ("delete".equals(option) && last == length - 1) {
+            Log.info("Deleting file '" + id + "'");
+            release(id);
+        }
+    }
+
+    private void release(String id) {
+        if (!owner.test(id))
+            files.delete(id);
+    }
+
+    /**
+     * Passes the request on to the delegate that keeps the file. Only the open
+     * ended range is passed on, that's what a resumed download asks for.
+     * 
+     * @return false if no delegate keeps the file
+     */
+    private boolean proxy(String id, String option, String range, HttpServletResponse response) throws IOException {
+        String delegateUrl = locator.apply(id);
+        if (delegateUrl == null)
+            return false;
+        long first = 0;
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range.trim());
+            if (matcher.matches() && !matcher.group(1).isEmpty() && matcher.group(2).isEmpty())
+                first = Long.parseLong(matcher.group(1));
+        }
+        URL url = new URL(new URL(delegateUrl), "/download/" + id + (option == null ? "" : "?option=" + option));
+        HttpResponse delegateResponse;
+        try {
+            delegateResponse = http.openDownload(url, first);
+        } catch (HttpIfaceException e) {
+            Log.warn("Couldn't get '" + id + "' from '" + delegateUrl + "': " + e.getMessage());
+            response.setStatus(502);
+            return true;
+        }
+        response.setStatus(delegateResponse.getStatusLine().getStatusCode());
+        for (String name : PROXIED_HEADERS) {
+            Header header = delegateResponse.getFirstHeader(name);
+            if (header != null)
+                response.setHeader(name, header.getValue());
+        }
+        HttpEntity entity = delegateResponse.getEntity();
+        if (entity != null) {
+            try (InputStream is = entity.getContent()) {
+                IOUtils.copy(is, response.getOutputStream());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the file without copying it through the user space, with Jetty the
+     * mapped file is written to the socket directly.
+     */
+    private void send(File file, long first, long count, HttpServletResponse response) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (response instanceof Response && count <= Integer.MAX_VALUE) {
+                ((Response) response).getHttpOutput()
+                        .sendContent(channel.map(FileChannel.MapMode.READ_ONLY, first, count));
+                return;
+            }
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long sent = 0;
+            while (sent < count) {
+                sent += channel.transferTo(first + sent, count - sent, out);
             }
         }
     }
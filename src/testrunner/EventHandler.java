@@ -0,0 +1,49 @@
+package testrunner;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Receives the job state changes pushed by a subordinate agent as soon as they
+ * happen. Example of the request JSON: { "name": "job_bal000123", "status":
+ * "DONE", "resultArchiveRef": "xyxasda223akdad" }
+ *
+ * The status polling still runs, so a lost event only delays the update.
+ */
+public class EventHandler implements BaseAgent.Handler {
+    public static interface Listener {
+        boolean jobEvent(String name, String status, String resultArchiveRef);
+    }
+
+    private Listener listener;
+
+    public EventHandler(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!"POST".equals(request.getMethod()))
+            return;
+        JsonObject jsonObject = JsonParser.parseReader(new InputStreamReader(request.getInputStream()))
+                .getAsJsonObject();
+        JsonElement name = jsonObject.get("name");
+        JsonElement status = jsonObject.get("status");
+        JsonElement resultArchiveRef = jsonObject.get("resultArchiveRef");
+        if (name == null || status == null) {
+            response.setStatus(400);
+            return;
+        }
+        boolean found = listener != null && listener.jobEvent(name.getAsString(), status.getAsString(),
+                resultArchiveRef == null ? null : resultArchiveRef.getAsString());
+        response.setStatus(found ? 200 : 404);
+    }
+}
@@ -1,42 +1,75 @@
 package testrunner;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
 /**
  * Manages the file storage for the agent. The public API is thread safe.
- * 
+ *
  * Will restore the 'awareness' of stored files on the application restart.
- * 
+ *
+ * When created in the content addressed mode the id of a file is the SHA-256
+ * of its content. Identical files are then stored only once and every add
+ * counts as a reference, the file is only removed from the disk when the last
+ * reference is deleted. The reference counts are not persisted, a restored
+ * file starts with a single reference. Shared files are always stored this
+ * way.
+ *
  * @author vitvitskyy
  *
  */
 public class FileStore {
+    private static final String TMP_PREFIX = ".tmp-";
+
     private Map<String, File> files;
+    private Map<String, Integer> refs;
     private Executor executor;
     private File baseDir;
+    private boolean contentAddressed;
+    private CountDownLatch restored = new CountDownLatch(1);
 
     public FileStore(File baseDir) {
+        this(baseDir, false);
+    }
+
+    public FileStore(File baseDir, boolean contentAddressed) {
         this.baseDir = baseDir;
+        this.contentAddressed = contentAddressed;
         files = new HashMap<String, File>();
+        refs = new HashMap<String, Integer>();
         executor = Executors.newFixedThreadPool(1);
 
         executor.execute(new Runnable() {
             public void run() {
                 restoreFiles();
+                restored.countDown();
             }
         });
     }
 
     public String addAsInputStream(InputStream is) throws IOException {
+        if (contentAddressed) {
+            return addSharedAsInputStream(is);
+        }
         String id = UUID.randomUUID().toString();
         File dest = new File(baseDir, id);
         FileUtils.copyInputStreamToFile(is, dest);
@@ -44,7 +77,30 @@ public class FileStore {
         return id;
     }
 
+    public static interface Content {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    /**
+     * Adds a file by letting the caller write it straight into the store, the
+     * file only becomes visible once it's complete.
+     */
+    public String addAsOutputStream(Content content) throws IOException {
+        File tmp = newTempFile();
+        MessageDigest md = contentAddressed ? newDigest() : null;
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            content.writeTo(md == null ? os : new DigestOutputStream(os, md));
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        return commit(tmp, md == null ? UUID.randomUUID().toString() : toHex(md.digest()));
+    }
+
     public String addAsFile(File file) throws IOException {
+        if (contentAddressed) {
+            return addSharedAsFile(file);
+        }
         String id = UUID.randomUUID().toString();
         File dest = new File(baseDir, id);
         FileUtils.copyFile(file, dest);
@@ -52,33 +108,152 @@ public class FileStore {
         return id;
     }
 
+    /**
+     * Adds a file by its content hash regardless of the mode of the store. This
+     * is used for the assets shared between many jobs, the id of such file is
+     * known to the client in advance.
+     */
+    public String addSharedAsInputStream(InputStream is) throws IOException {
+        File tmp = newTempFile();
+        MessageDigest md = newDigest();
+        try (InputStream dis = new DigestInputStream(is, md)) {
+            FileUtils.copyInputStreamToFile(dis, tmp);
+        }
+        return commit(tmp, toHex(md.digest()));
+    }
+
+    public String addSharedAsFile(File file) throws IOException {
+        String id = hashOf(file);
+        if (addRef(id))
+            return id;
+        File tmp = newTempFile();
+        FileUtils.copyFile(file, tmp);
+        return commit(tmp, id);
+    }
+
     synchronized public boolean has(String id) {
         return files.containsKey(id);
     }
-    
+
     synchronized public File get(String id) {
         return files.get(id);
     }
 
+    /**
+     * Adds one more reference to an already stored file.
+     *
+     * @return false if there's no file with this id in the store
+     */
+    synchronized public boolean addRef(String id) {
+        Integer count = refs.get(id);
+        if (count == null)
+            return false;
+        refs.put(id, count + 1);
+        return true;
+    }
+
     synchronized public void delete(String id) {
+        Integer count = refs.get(id);
+        if (count == null)
+            return;
+        if (count > 1) {
+            refs.put(id, count - 1);
+            return;
+        }
         File file = files.get(id);
         files.remove(id);
+        refs.remove(id);
+        if (contentAddressed || isHash(id)) {
+            // The same content may be added again right away under the same name
+            file.delete();
+            return;
+        }
         executor.execute(new Runnable() {
             public void run() {
                 file.delete();
             }
         });
     }
-    
+
+    /**
+     * Waits until the files stored before the restart are known to the store.
+     */
+    public void awaitRestore() throws InterruptedException {
+        restored.await();
+    }
+
+    /**
+     * Sets the reference counts of the restored files to the number of the
+     * restored jobs using them, the files not mentioned keep a single
+     * reference.
+     */
+    synchronized public void restoreRefs(Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (refs.containsKey(entry.getKey()))
+                refs.put(entry.getKey(), Math.max(1, entry.getValue()));
+        }
+    }
+
+    public static String hashOf(File file) throws IOException {
+        MessageDigest md = newDigest();
+        try (InputStream is = new DigestInputStream(new FileInputStream(file), md)) {
+            IOUtils.copy(is, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+        return toHex(md.digest());
+    }
+
     private void restoreFiles() {
         if (!this.baseDir.exists())
             this.baseDir.mkdirs();
         for (File file : this.baseDir.listFiles()) {
+            if (file.getName().startsWith(TMP_PREFIX)) {
+                file.delete();
+                continue;
+            }
             add(file, file.getName());
         }
     }
-    
+
+    private File newTempFile() {
+        return new File(baseDir, TMP_PREFIX + UUID.randomUUID().toString());
+    }
+
+    synchronized private String commit(File tmp, String id) throws IOException {
+        if (addRef(id)) {
+            tmp.delete();
+            return id;
+        }
+        File dest = new File(baseDir, id);
+        if (!tmp.renameTo(dest)) {
+            tmp.delete();
+            throw new IOException("Could not move '" + tmp.getName() + "' to '" + id + "' in the store.");
+        }
+        add(dest, id);
+        return id;
+    }
+
     synchronized private void add(File file, String id) {
         files.put(id, file);
+        refs.put(id, 1);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isHash(String id) {
+        return id.matches("[0-9a-f]{64}");
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
     }
 }
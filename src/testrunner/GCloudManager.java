@@ -11,8 +11,10 @@ import java.util.concurrent.TimeUnit;
 import com.google.api.services.compute.model.Instance;
 
 public class GCloudManager implements Runnable {
+    private static final BaseJob.Status[] ACTIVE = { BaseJob.Status.NEW, BaseJob.Status.PENDING,
+            BaseJob.Status.PROCESSING };
 
-    private List<BaseJob> jobs;
+    private JobRegistry jobs;
     private ScheduledExecutorService executor;
     private List<Worker> workers;
     private List<AgentConnection> delegates;
@@ -45,7 +47,7 @@ public class GCloudManager implements Runnable {
         }
     }
 
-    public GCloudManager(List<BaseJob> jobs, List<AgentConnection> delegates, List<Instance> instances, String myIp)
+    public GCloudManager(JobRegistry jobs, List<AgentConnection> delegates, List<Instance> instances, String myIp)
             throws IOException, GeneralSecurityException {
         this.jobs = jobs;
         this.delegates = delegates;
@@ -121,12 +123,12 @@ public class GCloudManager implements Runnable {
 
     private int totalRunningJobs(AgentConnection agent) {
         int count = 0;
-        for (BaseJob baseJob : Util.safeCopy(jobs)) {
-            BalancingJob bj = (BalancingJob) baseJob;
-            RemoteJob remoteJob = bj.getDelegate();
-            if (remoteJob != null && remoteJob.getAgent() == agent
-                    && bj.getStatus() != BaseJob.Status.DONE && bj.getStatus() != BaseJob.Status.ERROR) {
-                count++;
+        for (BaseJob.Status status : ACTIVE) {
+            for (BaseJob baseJob : jobs.withStatus(status)) {
+                RemoteJob remoteJob = ((BalancingJob) baseJob).getDelegate();
+                if (remoteJob != null && remoteJob.getAgent() == agent) {
+                    count++;
+                }
             }
         }
         return count;
@@ -154,10 +156,11 @@ public class GCloudManager implements Runnable {
 
     private int getUnscheduledCount() {
         int count = 0;
-        for (BaseJob baseJob : Util.safeCopy(jobs)) {
-            BalancingJob bj = (BalancingJob) baseJob;
-            if (bj.getDelegate() == null && bj.getStatus() != BaseJob.Status.ERROR) {
-                count++;
+        for (BaseJob.Status status : ACTIVE) {
+            for (BaseJob baseJob : jobs.withStatus(status)) {
+                if (((BalancingJob) baseJob).getDelegate() == null) {
+                    count++;
+                }
             }
         }
         return count;
@@ -0,0 +1,44 @@
+package testrunner;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lets a client check if a file with the given content hash is already stored
+ * with this agent before uploading it. 'GET /has/<hash>' only checks,
+ * 'POST /has/<hash>' also claims a reference to the stored file so it can be
+ * used in place of an upload. Both answer with the same JSON as '/upload' or
+ * with 404 when the file is not there.
+ *
+ * Only a content addressed FileStore uses hashes as ids, any other store will
+ * simply answer 404.
+ */
+public class HasHandler implements BaseAgent.Handler {
+
+    private FileStore files;
+
+    public HasHandler(FileStore files) {
+        this.files = files;
+    }
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        String pathInfo = request.getPathInfo();
+        String id = pathInfo.replaceAll("^/has/", "");
+        boolean found;
+        if ("POST".equals(request.getMethod())) {
+            found = files.addRef(id);
+        } else {
+            found = files.has(id);
+        }
+        if (!found) {
+            response.setStatus(404);
+        } else {
+            response.setStatus(200);
+            response.getWriter().println("{\"id\":\"" + id + "\"}");
+        }
+    }
+}
@@ -7,13 +7,18 @@ import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HostnameVerifier;
 
 import org.apache.http.HeaderElement;
 import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
@@ -21,24 +26,38 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
-import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContextBuilder;
 
+/**
+ * The HTTP client of the agents and the runner. There are two connection
+ * pools, one for the control calls (status, scheduling, events) and one for
+ * the bulk transfers (uploads and downloads), so that a status poll never
+ * waits behind a big transfer. The limits can be set with the system
+ * properties 'testrunner.http.<control|bulk>.maxTotal', '.maxPerRoute' and
+ * '.poolTimeout' (ms).
+ */
 public class HttpIface {
-    private HttpClientConnectionManager connManager;
+    private Pool control;
+    private Pool bulk;
     private ConnectionKeepAliveStrategy keepAliveStrategy;
     private int connectionTimeout;
     private int socketTimeout;
@@ -70,21 +89,109 @@ public class HttpIface {
         }
     }
 
+    /**
+     * A connection pool with its own client, keeps track of the time the
+     * requests wait for a connection.
+     */
+    public class Pool {
+        private String name;
+        private PoolingHttpClientConnectionManager connManager;
+        private CloseableHttpClient client;
+        private int poolTimeout;
+        private AtomicLong requests = new AtomicLong();
+        private AtomicLong waitNanos = new AtomicLong();
+        private AtomicLong maxWaitNanos = new AtomicLong();
+        private AtomicLong timeouts = new AtomicLong();
+
+        private Pool(String name, int maxTotal, int maxPerRoute, int poolTimeout) throws Exception {
+            this.name = name;
+            this.poolTimeout = poolTimeout;
+            connManager = new PoolingHttpClientConnectionManager(getSocketFactoryRegistry()) {
+                @Override
+                public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+                    return metered(super.requestConnection(route, state));
+                }
+            };
+            connManager.setMaxTotal(Integer.getInteger("testrunner.http." + name + ".maxTotal", maxTotal));
+            connManager.setDefaultMaxPerRoute(
+                    Integer.getInteger("testrunner.http." + name + ".maxPerRoute", maxPerRoute));
+            client = HttpClients.custom().setKeepAliveStrategy(keepAliveStrategy).setConnectionManager(connManager)
+                    .build();
+        }
+
+        private ConnectionRequest metered(ConnectionRequest request) {
+            return new ConnectionRequest() {
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, tunit);
+                    } catch (ConnectionPoolTimeoutException e) {
+                        timeouts.incrementAndGet();
+                        throw e;
+                    } finally {
+                        long wait = System.nanoTime() - start;
+                        requests.incrementAndGet();
+                        waitNanos.addAndGet(wait);
+                        maxWaitNanos.accumulateAndGet(wait, Math::max);
+                    }
+                }
+            };
+        }
+
+        private RequestConfig getRequestConfig() {
+            return RequestConfig.custom().setConnectionRequestTimeout(poolTimeout)
+                    .setConnectTimeout(connectionTimeout).setSocketTimeout(socketTimeout).build();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public PoolStats getStats() {
+            return connManager.getTotalStats();
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public double getAvgWaitMs() {
+            long count = requests.get();
+            return count == 0 ? 0 : waitNanos.get() / 1000000.0 / count;
+        }
+
+        public double getMaxWaitMs() {
+            return maxWaitNanos.get() / 1000000.0;
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+    }
+
     public HttpIface(int connectionTimeout, int socketTimeout) throws HttpIfaceException {
         try {
-            PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager(
-                    getSocketFactoryRegistry());
-            connManager.setMaxTotal(10);
-            connManager.setDefaultMaxPerRoute(10);
-            this.connManager = connManager;
             this.keepAliveStrategy = new MyKeepAliveStrategy();
             this.connectionTimeout = connectionTimeout;
             this.socketTimeout = socketTimeout;
+            this.control = new Pool("control", 64, 8, Integer.getInteger("testrunner.http.control.poolTimeout", 10000));
+            this.bulk = new Pool("bulk", 64, 16, Integer.getInteger("testrunner.http.bulk.poolTimeout", 600000));
         } catch (Exception e) {
             throw new HttpIfaceException(e);
         }
     }
 
+    public List<Pool> getPools() {
+        return Arrays.asList(control, bulk);
+    }
+
     private Registry<ConnectionSocketFactory> getSocketFactoryRegistry()
             throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
         Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
@@ -131,14 +238,36 @@ public class HttpIface {
         }
     }
 
+    /**
+     * Opens a download that picks up where it broke off should the connection
+     * fail.
+     */
+    public InputStream openResumableStream(URL url) throws HttpIfaceException {
+        return new ResumableInputStream(this, url);
+    }
+
     public HttpResponse openConnection(URL url) throws HttpIfaceException {
-        try {
-            CloseableHttpClient client = getClient();
+        return get(control, url, 0);
+    }
 
+    /**
+     * Opens a download through the bulk pool.
+     * 
+     * @param offset
+     *            where to start the download, the server answers with 206 if
+     *            it honors this
+     */
+    public HttpResponse openDownload(URL url, long offset) throws HttpIfaceException {
+        return get(bulk, url, offset);
+    }
+
+    private HttpResponse get(Pool pool, URL url, long offset) throws HttpIfaceException {
+        try {
             HttpGet httpget = new HttpGet(url.toExternalForm());
-            httpget.setConfig(getRequestConfig());
-            HttpResponse response = client.execute(httpget);
-            return response;
+            httpget.setConfig(pool.getRequestConfig());
+            if (offset > 0)
+                httpget.setHeader("Range", "bytes=" + offset + "-");
+            return pool.client.execute(httpget);
         } catch (Exception e) {
             throw new HttpIfaceException(e);
         }
@@ -146,45 +275,52 @@ public class HttpIface {
 
     public HttpResponse upload(URL url, File uploadFile, String name) throws HttpIfaceException {
         try {
-            CloseableHttpClient client = getClient();
             HttpPost httpPost = new HttpPost(url.toExternalForm());
 
             FileBody uploadFilePart = new FileBody(uploadFile);
             MultipartEntity reqEntity = new MultipartEntity();
             reqEntity.addPart("file", uploadFilePart);
-            httpPost.setConfig(getRequestConfig());
+            httpPost.setConfig(bulk.getRequestConfig());
             httpPost.setEntity(reqEntity);
 
-            return client.execute(httpPost);
+            return bulk.client.execute(httpPost);
         } catch (Exception e) {
             throw new HttpIfaceException(e);
         }
     }
 
-    private RequestConfig getRequestConfig() {
-        RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(Integer.MAX_VALUE)
-                .setConnectTimeout(connectionTimeout).setSocketTimeout(socketTimeout).build();
-        return requestConfig;
-    }
+    /**
+     * Posts a multipart form with the JSON in the part 'jobs' and a part per
+     * file, through the bulk pool.
+     */
+    public HttpResponse uploadBatch(URL url, String json, Map<String, File> files) throws HttpIfaceException {
+        try {
+            HttpPost httpPost = new HttpPost(url.toExternalForm());
 
-    private CloseableHttpClient getClient() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-        CloseableHttpClient client = HttpClients.custom().setKeepAliveStrategy(keepAliveStrategy)
-                .setSSLSocketFactory(getSslSocketFactory()).setConnectionManager(connManager).build();
-        return client;
+            MultipartEntity reqEntity = new MultipartEntity();
+            reqEntity.addPart("jobs", new StringBody(json, ContentType.APPLICATION_JSON));
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                reqEntity.addPart(entry.getKey(), new FileBody(entry.getValue()));
+            }
+            httpPost.setConfig(bulk.getRequestConfig());
+            httpPost.setEntity(reqEntity);
+
+            return bulk.client.execute(httpPost);
+        } catch (Exception e) {
+            throw new HttpIfaceException(e);
+        }
     }
 
     public HttpResponse postString(URL url, String val) throws HttpIfaceException {
         try {
-            CloseableHttpClient client = getClient();
-
             HttpPost httpPost = new HttpPost(url.toExternalForm());
-            httpPost.setConfig(getRequestConfig());
+            httpPost.setConfig(control.getRequestConfig());
 
             StringEntity entity = new StringEntity(val);
             httpPost.setEntity(entity);
             httpPost.setHeader("Accept", "application/json");
             httpPost.setHeader("Content-type", "application/json");
-            return client.execute(httpPost);
+            return control.client.execute(httpPost);
         } catch (Exception e) {
             throw new HttpIfaceException(e);
         }
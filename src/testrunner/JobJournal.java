@@ -0,0 +1,185 @@
+package testrunner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Keeps the job table of an agent on disk so it survives a restart. Every
+ * change of a job is appended to 'journal.log' as one JSON line carrying the
+ * full record of the job, i.e. {"seq":12,"job":{"name":"..",...}} or
+ * {"seq":13,"removed":"<name>"}. From time to time the whole table is written
+ * to 'snapshot.json' and the journal is started over.
+ *
+ * Every line is flushed as it's written, so a crash of the process loses
+ * nothing, a crash of the machine may lose the last few changes. A torn last
+ * line is ignored on load. The public API is thread safe.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class JobJournal {
+    private static final String SNAPSHOT = "snapshot.json";
+    private static final String JOURNAL = "journal.log";
+
+    private File folder;
+    private Writer journal;
+    private long seq;
+    private int entries;
+
+    public JobJournal(File folder) {
+        this.folder = folder;
+        if (!folder.isDirectory()) {
+            if (folder.exists())
+                folder.delete();
+            folder.mkdirs();
+        }
+    }
+
+    /**
+     * Reads the job table back, the snapshot first and then the changes made
+     * after it. This is expected before any change is recorded.
+     *
+     * @return the job records by the job name in the order the jobs were first
+     *         seen
+     */
+    public synchronized Map<String, JsonObject> load() throws IOException {
+        Map<String, JsonObject> result = new LinkedHashMap<String, JsonObject>();
+        long snapshotSeq = 0;
+        File snapshot = new File(folder, SNAPSHOT);
+        if (snapshot.exists()) {
+            try (InputStreamReader reader = new InputStreamReader(new FileInputStream(snapshot),
+                    StandardCharsets.UTF_8)) {
+                JsonObject jsonObject = JsonParser.parseReader(reader).getAsJsonObject();
+                snapshotSeq = jsonObject.get("seq").getAsLong();
+                for (JsonElement jsonElement : jsonObject.get("jobs").getAsJsonArray()) {
+                    JsonObject job = jsonElement.getAsJsonObject();
+                    result.put(job.get("name").getAsString(), job);
+                }
+            }
+        }
+        seq = snapshotSeq;
+        File journalFile = new File(folder, JOURNAL);
+        if (journalFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonObject entry;
+                    try {
+                        entry = JsonParser.parseString(line).getAsJsonObject();
+                    } catch (JsonParseException | IllegalStateException e) {
+                        Log.warn("Skipping a broken journal entry.");
+                        continue;
+                    }
+                    long entrySeq = entry.get("seq").getAsLong();
+                    seq = Math.max(seq, entrySeq);
+                    // Left over from before the snapshot was taken
+                    if (entrySeq <= snapshotSeq)
+                        continue;
+                    JsonElement job = entry.get("job");
+                    JsonElement removed = entry.get("removed");
+                    if (job != null) {
+                        JsonObject record = job.getAsJsonObject();
+                        result.put(record.get("name").getAsString(), record);
+                    } else if (removed != null) {
+                        result.remove(removed.getAsString());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized void update(JsonObject record) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("seq", ++seq);
+        entry.add("job", record);
+        append(entry);
+    }
+
+    public synchronized void remove(String name) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("seq", ++seq);
+        entry.addProperty("removed", name);
+        append(entry);
+    }
+
+    /**
+     * Replaces the snapshot with the given job table and starts the journal
+     * over. The records should be taken while holding the lock of the journal
+     * so that no change is missed, hence the callback.
+     */
+    public synchronized void compact(Snapshot snapshot) throws IOException {
+        if (entries == 0 && new File(folder, SNAPSHOT).exists())
+            return;
+        JsonArray jobs = new JsonArray();
+        for (JsonObject record : snapshot.records()) {
+            jobs.add(record);
+        }
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.addProperty("seq", seq);
+        jsonObject.add("jobs", jobs);
+
+        File tmp = new File(folder, SNAPSHOT + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(jsonObject.toString());
+        }
+        Files.move(tmp.toPath(), new File(folder, SNAPSHOT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (journal != null) {
+            journal.close();
+        }
+        journal = open(false);
+        entries = 0;
+    }
+
+    /**
+     * @return the value of the field of the record or null if it's not set
+     */
+    public static String getString(JsonObject record, String key) {
+        JsonElement jsonElement = record.get(key);
+        return jsonElement == null || jsonElement.isJsonNull() ? null : jsonElement.getAsString();
+    }
+
+    public static interface Snapshot {
+        Collection<JsonObject> records();
+    }
+
+    private void append(JsonObject entry) {
+        try {
+            if (journal == null)
+                journal = open(true);
+            journal.write(entry.toString());
+            journal.write('\n');
+            journal.flush();
+            ++entries;
+        } catch (IOException e) {
+            Log.error("Couldn't write to the job journal in '" + folder.getAbsolutePath() + "'.");
+            Log.error(e);
+        }
+    }
+
+    private Writer open(boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(folder, JOURNAL), append),
+                StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,167 @@
+package testrunner;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import testrunner.BaseJob.Status;
+
+/**
+ * Jobs of an agent indexed by name, by status and by the version of their last
+ * change. The public API is thread safe.
+ *
+ * The removed jobs are remembered by the version of the removal so that they
+ * can be reported to the pollers, only the last MAX_REMOVED of them.
+ *
+ * The collections returned are live views, they can be iterated without a copy
+ * or a lock and will reflect some or all of the changes made during the
+ * iteration.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class JobRegistry {
+    private static final int MAX_REMOVED = 10000;
+
+    private Map<String, BaseJob> byName;
+    private ConcurrentSkipListMap<Long, BaseJob> byOrder;
+    private ConcurrentSkipListMap<Long, BaseJob> byVersion;
+    private Map<Status, Set<BaseJob>> byStatus;
+    private AtomicLong order;
+    private ConcurrentSkipListMap<Long, String> removed;
+    private volatile long forgottenUpTo;
+    private List<Listener> listeners;
+
+    public static interface Listener {
+        void jobAdded(BaseJob job);
+
+        void jobChanged(BaseJob job, Status oldStatus);
+
+        void jobRemoved(BaseJob job);
+    }
+
+    public JobRegistry() {
+        byName = new ConcurrentHashMap<String, BaseJob>();
+        byOrder = new ConcurrentSkipListMap<Long, BaseJob>();
+        byVersion = new ConcurrentSkipListMap<Long, BaseJob>();
+        byStatus = new EnumMap<Status, Set<BaseJob>>(Status.class);
+        for (Status status : Status.values()) {
+            byStatus.put(status, ConcurrentHashMap.<BaseJob>newKeySet());
+        }
+        order = new AtomicLong();
+        removed = new ConcurrentSkipListMap<Long, String>();
+        listeners = new CopyOnWriteArrayList<Listener>();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return false if there's already a job with this name
+     */
+    public boolean add(BaseJob job) {
+        synchronized (this) {
+            if (byName.containsKey(job.getName()))
+                return false;
+            byName.put(job.getName(), job);
+            long key = order.incrementAndGet();
+            job.attach(this, key);
+            byOrder.put(key, job);
+            byVersion.put(job.getVersion(), job);
+            byStatus.get(job.getStatus()).add(job);
+        }
+        for (Listener listener : listeners) {
+            listener.jobAdded(job);
+        }
+        return true;
+    }
+
+    public boolean remove(BaseJob job) {
+        synchronized (this) {
+            if (byName.get(job.getName()) != job)
+                return false;
+            byName.remove(job.getName());
+            byOrder.remove(job.getRegistryKey());
+            byVersion.remove(job.getVersion());
+            byStatus.get(job.getStatus()).remove(job);
+            job.attach(null, 0);
+            removed.put(BaseJob.nextVersion(), job.getName());
+            while (removed.size() > MAX_REMOVED) {
+                forgottenUpTo = removed.pollFirstEntry().getKey();
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.jobRemoved(job);
+        }
+        return true;
+    }
+
+    public BaseJob get(String name) {
+        return byName.get(name);
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    /**
+     * All the jobs in the order they were added.
+     */
+    public Collection<BaseJob> all() {
+        return Collections.unmodifiableCollection(byOrder.values());
+    }
+
+    public Collection<BaseJob> withStatus(Status status) {
+        return Collections.unmodifiableSet(byStatus.get(status));
+    }
+
+    /**
+     * The jobs that have changed after the given version, see
+     * {@link BaseJob#getLastVersion()}.
+     */
+    public Collection<BaseJob> changedSince(long version) {
+        return Collections.unmodifiableCollection(byVersion.tailMap(version, false).values());
+    }
+
+    /**
+     * The names of the jobs removed after the given version.
+     */
+    public Collection<String> removedSince(long version) {
+        return Collections.unmodifiableCollection(removed.tailMap(version, false).values());
+    }
+
+    /**
+     * @return false if some of the jobs removed after the given version are
+     *         forgotten already
+     */
+    public boolean knowsRemovalsSince(long version) {
+        return version >= forgottenUpTo;
+    }
+
+    /**
+     * Called by the job itself while holding its own lock.
+     */
+    void jobChanged(BaseJob job, Status oldStatus, long oldVersion) {
+        synchronized (this) {
+            if (byName.get(job.getName()) != job)
+                return;
+            byVersion.remove(oldVersion);
+            byVersion.put(job.getVersion(), job);
+            if (oldStatus != job.getStatus()) {
+                byStatus.get(oldStatus).remove(job);
+                byStatus.get(job.getStatus()).add(job);
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.jobChanged(job, oldStatus);
+        }
+    }
+}
@@ -1,13 +1,26 @@
 package testrunner;
 
 import java.io.File;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.JsonObject;
+
 import testrunner.BaseJob.Status;
 import testrunner.HttpIface.HttpIfaceException;
 
@@ -18,35 +31,124 @@ import testrunner.HttpIface.HttpIfaceException;
  *
  */
 public class LeafAgent extends BaseAgent {
-    private List<BaseJob> jobs = new LinkedList<BaseJob>();
+    private static final long DIGESTED_TTL_MS = TimeUnit.HOURS.toMillis(1);
+    private JobRegistry jobs = new JobRegistry();
     private FileStore files;
     private ExecutorService executor;
     private LeafJob.JobFactory jobFactory;
     private long startTime;
     private HttpIface http;
+    private ExecutorService eventExecutor = Executors.newSingleThreadExecutor();
+    private SlotScheduler slots;
+    private JobJournal journal;
 
-    private LeafAgent(File baseDir) throws HttpIfaceException {
+    private LeafAgent(File baseDir, boolean dedup) throws HttpIfaceException {
         int nThreads = Runtime.getRuntime().availableProcessors();
         executor = Executors.newFixedThreadPool(nThreads);
-        files = new FileStore(new File(baseDir, "store"));
+        slots = new SlotScheduler(nThreads);
+        files = new FileStore(new File(baseDir, "store"), dedup);
         jobFactory = new LeafJob.JobFactory(files, new File(baseDir, "processing"));
-        System.out.println("Starting agent with " + nThreads + " threads.");
+        journal = new JobJournal(new File(baseDir, "state"));
+        System.out.println("Starting agent with " + nThreads + " CPUs.");
+
+        jobs.addListener(new JobRegistry.Listener() {
+            @Override
+            public void jobAdded(BaseJob job) {
+                journal.update(toRecord(job));
+                if (job.getStatus() == Status.NEW) {
+                    slots.add(job);
+                    runJobs();
+                }
+            }
+
+            @Override
+            public void jobChanged(BaseJob job, Status oldStatus) {
+                journal.update(toRecord(job));
+            }
+
+            @Override
+            public void jobRemoved(BaseJob job) {
+                journal.remove(job.getName());
+                slots.remove(job);
+                ((LeafJob) job).dropDigestArchive();
+            }
+        });
+
+        this.http = new HttpIface(1000 /*connectionTimeout*/, 20000 /*socketTimeout*/);
+        startTime = System.currentTimeMillis();
+    }
 
+    /**
+     * Starts the periodic tasks, only once the state is restored so that the
+     * journal isn't compacted before it's loaded.
+     */
+    private void startLeafTasks() {
         ScheduledExecutorService tp = Executors.newScheduledThreadPool(1);
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                for (BaseJob baseJob : Util.safeCopy(jobs)) {
-                    if (baseJob.getStatus() == Status.NEW) {
-                        runJob((LeafJob) baseJob, executor);
-                    }
-                }
+                runJobs();
             }
         };
 
         tp.scheduleAtFixedRate(runnable, 100, 100, TimeUnit.MILLISECONDS);
-        this.http = new HttpIface(1000 /*connectionTimeout*/, 20000 /*socketTimeout*/);
-        startTime = System.currentTimeMillis();
+        tp.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compactJournal();
+                } catch (Exception e) {
+                    Log.error("Problem saving state");
+                    e.printStackTrace(System.out);
+                }
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+        tp.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expireDigestArchives();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Drops the archives of the digested files the client hasn't come for.
+     */
+    private void expireDigestArchives() {
+        long expired = System.currentTimeMillis() - DIGESTED_TTL_MS;
+        for (BaseJob baseJob : jobs.all()) {
+            LeafJob job = (LeafJob) baseJob;
+            if (job.getStatus() != Status.PROCESSING && job.getDigestArchiveRef() != null
+                    && job.getDigestArchiveTime() < expired && job.dropDigestArchive()) {
+                journal.update(toRecord(job));
+            }
+        }
+    }
+
+    /**
+     * Lets the job holding the archive of the digested files with this ref
+     * give it back, the client is done with it.
+     * 
+     * @return false if no job holds it
+     */
+    private boolean releaseDigestArchive(String ref) {
+        for (BaseJob baseJob : jobs.all()) {
+            LeafJob job = (LeafJob) baseJob;
+            if (ref.equals(job.getDigestArchiveRef()) && job.dropDigestArchive()) {
+                journal.update(toRecord(job));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts the waiting jobs that fit into the free CPUs.
+     */
+    private void runJobs() {
+        for (BaseJob baseJob : slots.admit()) {
+            runJob((LeafJob) baseJob, executor);
+        }
     }
 
     public void runJob(LeafJob job, ExecutorService executor) {
@@ -56,18 +158,163 @@ public class LeafAgent extends BaseAgent {
             public void run() {
                 try {
                     job.updateStatus(Status.PROCESSING);
+                    notifyUpstream(job);
                     job.run(http);
                     job.updateStatus(Status.DONE);
+                    notifyUpstream(job);
                 } catch (Exception e) {
                     e.printStackTrace(System.out);
+                } finally {
+                    slots.release(job);
+                    runJobs();
                 }
             }
         });
     }
 
+    /**
+     * Pushes the job state to the agent that has sent the job so it doesn't
+     * need to wait for the next status poll. The poll is still there should
+     * this fail.
+     */
+    private void notifyUpstream(LeafJob job) {
+        if (job.getRemoteUrl() == null)
+            return;
+        String json = "{\"name\":\"" + job.getName() + "\",\"status\":\"" + job.getStatus() + "\","
+                + "\"resultArchiveRef\":\"" + job.getResultArchiveRef() + "\"}";
+        eventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HttpResponse response = http.postString(new URL(new URL(job.getRemoteUrl()), "/event"), json);
+                    EntityUtils.consume(response.getEntity());
+                } catch (Exception e) {
+                    Log.debug("[" + job.getName() + "] Couldn't push the job state to '" + job.getRemoteUrl() + "'.");
+                }
+            }
+        });
+    }
+
+    /**
+     * Brings back the jobs from the journal. The jobs that were waiting are
+     * queued right away, the jobs that were running are run again from the
+     * stored archive, the finished ones are announced to the agent that sent
+     * them.
+     */
+    private void restoreState() throws IOException, InterruptedException {
+        files.awaitRestore();
+        Map<String, Integer> refs = new HashMap<String, Integer>();
+        List<LeafJob> finished = new ArrayList<LeafJob>();
+        Set<String> orphans = new HashSet<String>();
+        int restored = 0;
+        for (JsonObject record : journal.load().values()) {
+            String name = record.get("name").getAsString();
+            Status status = Status.valueOf(record.get("status").getAsString());
+            int priority = record.get("priority").getAsInt();
+            String jobArchiveRef = JobJournal.getString(record, "jobArchiveRef");
+            String resultArchiveRef = JobJournal.getString(record, "resultArchiveRef");
+            String remoteJobArchiveRef = JobJournal.getString(record, "remoteJobArchiveRef");
+            String remoteUrl = JobJournal.getString(record, "remoteUrl");
+            String digestArchiveRef = JobJournal.getString(record, "digestArchiveRef");
+
+            // The run has stored the result but didn't get to mark the job
+            if (status == Status.PROCESSING && resultArchiveRef != null && files.has(resultArchiveRef))
+                status = Status.DONE;
+            if (status == Status.DONE && (resultArchiveRef == null || !files.has(resultArchiveRef))) {
+                Log.warn("[" + name + "] Not restoring, result archive '" + resultArchiveRef + "' is gone.");
+                orphans.add(digestArchiveRef);
+                continue;
+            }
+            if (status != Status.DONE && jobArchiveRef != null && !files.has(jobArchiveRef)) {
+                if (remoteJobArchiveRef == null) {
+                    Log.warn("[" + name + "] Not restoring, job archive '" + jobArchiveRef + "' is gone.");
+                    orphans.add(digestArchiveRef);
+                    continue;
+                }
+                // Will be downloaded again
+                jobArchiveRef = null;
+            }
+
+            LeafJob job = (LeafJob) (remoteJobArchiveRef != null
+                    ? jobFactory.newJob(name, remoteJobArchiveRef, remoteUrl, record.get("cpuReq").getAsInt(), priority)
+                    : jobFactory.newJob(name, jobArchiveRef, priority));
+            job.updateCpuReq(record.get("cpuReq").getAsInt());
+            job.updateJobArchiveRef(jobArchiveRef);
+            if (digestArchiveRef != null && files.has(digestArchiveRef)) {
+                job.updateDigestArchive(digestArchiveRef, record.get("digestArchiveTime").getAsLong());
+                countRef(refs, digestArchiveRef);
+            }
+            if (status == Status.DONE || status == Status.ERROR) {
+                job.updateResultArchiveRef(resultArchiveRef);
+                job.updateStatus(status);
+            }
+            if (status == Status.DONE) {
+                countRef(refs, resultArchiveRef);
+                finished.add(job);
+            } else if (status != Status.ERROR && jobArchiveRef != null) {
+                countRef(refs, jobArchiveRef);
+                if (remoteUrl == null) {
+                    // A direct job holds a reference to each of its shared assets
+                    String manifest = ZipUtils.getFileAsString(files.get(jobArchiveRef), "manifest.json");
+                    for (String sharedId : BaseJob.parseSharedAssets(manifest).values()) {
+                        countRef(refs, sharedId);
+                    }
+                }
+            }
+            if (jobs.add(job))
+                ++restored;
+        }
+        files.restoreRefs(refs);
+        // The digested files of the jobs not restored have no one to hold them
+        for (String ref : orphans) {
+            if (ref != null && !refs.containsKey(ref))
+                files.delete(ref);
+        }
+        compactJournal();
+        Log.info("Restored " + restored + " jobs.");
+        for (LeafJob job : finished) {
+            notifyUpstream(job);
+        }
+    }
+
+    private static void countRef(Map<String, Integer> refs, String id) {
+        refs.merge(id, 1, Integer::sum);
+    }
+
+    private void compactJournal() throws IOException {
+        journal.compact(new JobJournal.Snapshot() {
+            @Override
+            public Collection<JsonObject> records() {
+                List<JsonObject> result = new ArrayList<JsonObject>();
+                for (BaseJob baseJob : jobs.all()) {
+                    result.add(toRecord(baseJob));
+                }
+                return result;
+            }
+        });
+    }
+
+    private JsonObject toRecord(BaseJob job) {
+        JsonObject record = new JsonObject();
+        record.addProperty("name", job.getName());
+        record.addProperty("priority", job.getPriority());
+        record.addProperty("cpuReq", job.getCpuReq());
+        record.addProperty("status", String.valueOf(job.getStatus()));
+        record.addProperty("jobArchiveRef", job.getJobArchiveRef());
+        record.addProperty("resultArchiveRef", job.getResultArchiveRef());
+        record.addProperty("remoteJobArchiveRef", job.getRemoteJobArchiveRef());
+        record.addProperty("remoteUrl", job.getRemoteUrl());
+        LeafJob leafJob = (LeafJob) job;
+        if (leafJob.getDigestArchiveRef() != null) {
+            record.addProperty("digestArchiveRef", leafJob.getDigestArchiveRef());
+            record.addProperty("digestArchiveTime", leafJob.getDigestArchiveTime());
+        }
+        return record;
+    }
+
     @Override
     protected Handler getStatusHandler() {
-        return new StatusHandler(jobs);
+        return new StatusHandler(jobs, slots);
     }
 
     @Override
@@ -75,15 +322,25 @@ public class LeafAgent extends BaseAgent {
         return new UploadHandler(files);
     }
 
+    @Override
+    protected Handler getHasHandler() {
+        return new HasHandler(files);
+    }
+
     @Override
     protected Handler getDownloadHandler() {
-        return new DownloadHandler(files);
+        return new DownloadHandler(files, this::releaseDigestArchive);
     }
 
     @Override
     protected Handler getNewJobHandler() {
         return new NewJobHandler(jobFactory, jobs, files);
     }
+
+    @Override
+    protected Handler getNewBatchHandler() {
+        return new NewBatchHandler(jobFactory, jobs, files);
+    }
     
     @Override
     protected Handler getStatusPage() {
@@ -91,17 +348,30 @@ public class LeafAgent extends BaseAgent {
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.out.println("Syntax: leafagent <port> <base dir>");
+        List<String> a = new ArrayList<String>(Arrays.asList(args));
+        boolean dedup = CmdUtils.hasKen(a, "-dedup");
+        if (a.size() < 2) {
+            System.out.println("Syntax: leafagent [-dedup] <port> <base dir>");
+            System.out.println("  Where:");
+            System.out.println("          dedup     Store the files by content hash, identical files are stored once.");
             return;
         }
-        int port = Integer.parseInt(args[0]);
-        File baseDir = new File(args[1]);
-        new LeafAgent(baseDir).startAgent(port);
+        int port = Integer.parseInt(a.get(0));
+        File baseDir = new File(a.get(1));
+        LeafAgent agent = new LeafAgent(baseDir, dedup);
+        agent.restoreState();
+        agent.startLeafTasks();
+        agent.startAgent(port);
     }
 
     @Override
     protected Handler getLogHandler() {
         return new LogHandler(jobs);
     }
+
+    @Override
+    protected Handler getEventHandler() {
+        // Leaf agents have no subordinates
+        return new EventHandler(null);
+    }
 }
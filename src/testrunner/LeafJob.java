@@ -6,9 +6,22 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -20,8 +33,19 @@ import testrunner.HttpIface.HttpIfaceException;
  * run.sh inside.
  * 
  * The specific details of the job are all handled by the run.sh and all the
- * resources must be fully contained inside the zip file. This wrapper assumes
- * nothing about the job being ran.
+ * resources must be fully contained inside the zip file, except for the shared
+ * assets listed in the manifest.json which are linked into the working folder.
+ * This wrapper assumes nothing about the job being ran.
+ * 
+ * The output files listed in the manifest under "digest", i.e.
+ * "digest":{"files":["recon.yuv"],"frameSize":3110400}, are not put into the
+ * result archive, their SHA-256 digests, whole and per frame, are put into
+ * 'digests.json' instead. The files themselves go into an archive of their own
+ * that is kept in the store, 'digests.json' has its ref in "archiveRef". The
+ * job holds it until the client downloads it with '?option=delete' or drops it
+ * with '?option=release' once it has checked the digests. Should the client
+ * never do that the agent drops it when the job is removed or the archive has
+ * expired.
  * 
  * @author vitvitskyy
  *
@@ -30,6 +54,11 @@ public class LeafJob extends BaseJob {
     private File processingBase;
     private FileStore files;
     private File logFile;
+    private List<String> digestFiles = new ArrayList<String>();
+    private int digestFrameSize;
+    private String digestArchiveRef;
+    private long digestArchiveTime;
+    private static Map<String, Object> fetchLocks = new ConcurrentHashMap<String, Object>();
 
     public static class JobFactory implements BaseJob.JobFactory {
         private File processingBase;
@@ -69,20 +98,29 @@ public class LeafJob extends BaseJob {
     public void run(HttpIface http) throws Exception {
         // Dearchive the job
         Log.info("[" + getName() + "] Running job.");
+        File jobBase = new File(processingBase, getName());
+        // Left over from a run interrupted by a restart
+        if (jobBase.exists())
+            FileUtils.deleteDirectory(jobBase);
+        dropDigestArchive();
         if (getJobArchiveRef() == null && getRemoteJobArchiveRef() != null) {
-            downloadJobArchive(http);
+            extractRemoteJobArchive(http, jobBase);
+        } else {
+            File jobArchive = files.get(getJobArchiveRef());
+            if (jobArchive == null)
+                throw new Exception(
+                        "Could not resolve incoming job archive for job " + getName() + ":" + getJobArchiveRef());
+            ZipUtils.extractAll(jobArchive, jobBase);
         }
-        File jobArchive = files.get(getJobArchiveRef());
-        if (jobArchive == null)
-            throw new Exception(
-                    "Could not resolve incoming job archive for job " + getName() + ":" + getJobArchiveRef());
-        File jobBase = new File(processingBase, getName());
-        ZipUtils.extractAll(jobArchive, jobBase);
 
         // Read the manifest
         File manifest = new File(jobBase, "manifest.json");
+        Map<String, String> sharedAssets = new HashMap<String, String>();
         if (manifest.exists()) {
-            parseManifest(manifest);
+            sharedAssets = parseManifest(manifest);
+        }
+        for (Map.Entry<String, String> entry : sharedAssets.entrySet()) {
+            linkSharedAsset(http, entry.getValue(), new File(jobBase, entry.getKey()));
         }
         logFile = new File(jobBase, "stdout.log");
         Process proc = new ProcessBuilder("/bin/bash", jobBase.getAbsolutePath() + "/run.sh").redirectErrorStream(true)
@@ -91,15 +129,19 @@ public class LeafJob extends BaseJob {
         FileUtils.copyInputStreamToFile(is, logFile);
 
         // Archive the results
-        File tmp = File.createTempFile("super", "duper");
-        ZipUtils.compressDir(jobBase, tmp);
-        updateResultArchiveRef(files.addAsFile(tmp));
-        tmp.delete();
+        Set<String> exclude = new HashSet<String>(sharedAssets.keySet());
+        writeDigests(jobBase);
+        updateResultArchiveRef(files.addAsOutputStream(os -> ZipUtils.compressDir(jobBase, os, exclude)));
         FileUtils.deleteDirectory(jobBase);
+        for (String sharedId : sharedAssets.values()) {
+            files.delete(sharedId);
+        }
 
         // Deleting the input file
-        Log.info("[" + getName() + "] Deleting job archive '" + getJobArchiveRef() + "'.");
-        files.delete(getJobArchiveRef());
+        if (getJobArchiveRef() != null) {
+            Log.info("[" + getName() + "] Deleting job archive '" + getJobArchiveRef() + "'.");
+            files.delete(getJobArchiveRef());
+        }
 
         Log.info("[" + getName() + "] Finished job.");
     }
@@ -109,22 +151,138 @@ public class LeafJob extends BaseJob {
         return logFile == null ? null : new FileInputStream(logFile);
     }
 
-    private void downloadJobArchive(HttpIface http) throws IOException, HttpIfaceException {
+    /**
+     * Unpacks the job archive while it's downloaded from the upstream agent,
+     * no copy is kept since the upstream agent holds on to the archive until
+     * the job is done and a rerun can simply download it again.
+     */
+    private void extractRemoteJobArchive(HttpIface http, File jobBase) throws IOException, HttpIfaceException {
         Log.info("[" + getName() + "] Downloading job archive '" + getRemoteJobArchiveRef() + "' from '"
                 + getRemoteUrl() + "'.");
         try (InputStream is = http
-                .openUrlStream(new URL(new URL(getRemoteUrl()), "/download/" + getRemoteJobArchiveRef()))) {
-            String jobArchiveRef = files.addAsInputStream(is);
-            updateJobArchiveRef(jobArchiveRef);
+                .openResumableStream(new URL(new URL(getRemoteUrl()), "/download/" + getRemoteJobArchiveRef()))) {
+            ZipUtils.extractAll(is, jobBase);
+        }
+    }
+
+    /**
+     * Puts a shared asset into the working folder of the job. The asset is
+     * fetched from the upstream agent only if this agent doesn't have it yet,
+     * the jobs running at the same time all use the same stored copy.
+     */
+    private void linkSharedAsset(HttpIface http, String id, File dest) throws Exception {
+        Object lock = fetchLocks.computeIfAbsent(id, k -> new Object());
+        synchronized (lock) {
+            if (getRemoteUrl() == null) {
+                // The agent has taken a reference when the job was created
+                if (!files.has(id))
+                    throw new Exception("Could not resolve shared asset for job " + getName() + ":" + id);
+            } else if (!files.addRef(id)) {
+                Log.info("[" + getName() + "] Downloading shared asset '" + id + "' from '" + getRemoteUrl() + "'.");
+                try (InputStream is = http.openResumableStream(new URL(new URL(getRemoteUrl()), "/download/" + id))) {
+                    String fetchedId = files.addSharedAsInputStream(is);
+                    if (!id.equals(fetchedId)) {
+                        files.delete(fetchedId);
+                        throw new Exception("Shared asset '" + id + "' for job " + getName() + " was corrupted.");
+                    }
+                }
+            }
+        }
+        try {
+            Files.createLink(dest.toPath(), files.get(id).toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            FileUtils.copyFile(files.get(id), dest);
+        }
+    }
+
+    /**
+     * Writes the digests of the output files the manifest asks for and moves
+     * these files into an archive of their own, out of the way of the result
+     * archive.
+     */
+    private void writeDigests(File jobBase) throws IOException {
+        File digestedDir = new File(jobBase, "digested");
+        JsonObject digests = new JsonObject();
+        for (String name : digestFiles) {
+            File file = new File(jobBase, name);
+            if (!file.isFile())
+                continue;
+            MessageDigest whole = FileStore.newDigest();
+            JsonArray frames = new JsonArray();
+            byte[] buf = new byte[digestFrameSize > 0 ? digestFrameSize : 1 << 20];
+            try (InputStream is = new FileInputStream(file)) {
+                int read;
+                while ((read = IOUtils.read(is, buf)) > 0) {
+                    whole.update(buf, 0, read);
+                    if (digestFrameSize > 0) {
+                        MessageDigest frame = FileStore.newDigest();
+                        frame.update(buf, 0, read);
+                        frames.add(FileStore.toHex(frame.digest()));
+                    }
+                }
+            }
+            JsonObject digest = new JsonObject();
+            digest.addProperty("size", file.length());
+            digest.addProperty("sha256", FileStore.toHex(whole.digest()));
+            digest.add("frames", frames);
+            digests.add(name, digest);
+            FileUtils.moveFileToDirectory(file, digestedDir, true);
         }
+        if (digests.size() == 0)
+            return;
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.add("files", digests);
+        String ref = files.addAsOutputStream(
+                os -> ZipUtils.compressDir(digestedDir, os, Collections.<String>emptySet()));
+        updateDigestArchive(ref, System.currentTimeMillis());
+        jsonObject.addProperty("archiveRef", ref);
+        FileUtils.writeStringToFile(new File(jobBase, "digests.json"), jsonObject.toString(), StandardCharsets.UTF_8);
+    }
+
+    public synchronized String getDigestArchiveRef() {
+        return digestArchiveRef;
+    }
+
+    public synchronized long getDigestArchiveTime() {
+        return digestArchiveTime;
     }
 
-    private void parseManifest(File manifest) throws IOException {
+    public synchronized void updateDigestArchive(String digestArchiveRef, long digestArchiveTime) {
+        this.digestArchiveRef = digestArchiveRef;
+        this.digestArchiveTime = digestArchiveTime;
+    }
+
+    /**
+     * Gives back the reference the job holds to the archive of the digested
+     * files.
+     * 
+     * @return false if the job holds none
+     */
+    public synchronized boolean dropDigestArchive() {
+        if (digestArchiveRef == null)
+            return false;
+        Log.info("[" + getName() + "] Deleting digested archive '" + digestArchiveRef + "'.");
+        files.delete(digestArchiveRef);
+        digestArchiveRef = null;
+        return true;
+    }
+
+    private Map<String, String> parseManifest(File manifest) throws IOException {
         String manifestStr = FileUtils.readFileToString(manifest);
         JsonObject jsonObject = JsonParser.parseString(manifestStr).getAsJsonObject();
         JsonElement jsonElement = jsonObject.get("cpu");
         if (jsonElement != null) {
             updateCpuReq(jsonElement.getAsInt());
         }
+        JsonElement digest = jsonObject.get("digest");
+        digestFiles.clear();
+        if (digest != null) {
+            for (JsonElement file : digest.getAsJsonObject().get("files").getAsJsonArray()) {
+                digestFiles.add(file.getAsString());
+            }
+            JsonElement frameSize = digest.getAsJsonObject().get("frameSize");
+            digestFrameSize = frameSize == null ? 0 : frameSize.getAsInt();
+        }
+        return parseSharedAssets(manifestStr);
     }
 }
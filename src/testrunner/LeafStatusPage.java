@@ -8,7 +8,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -18,11 +17,11 @@ import org.apache.commons.io.IOUtils;
 import org.thymeleaf.context.Context;
 
 public class LeafStatusPage implements BaseAgent.Handler {
-    private List<BaseJob> jobs;
+    private JobRegistry jobs;
     private long startTime;
     private FileStore fileStore;
 
-    public LeafStatusPage(List<BaseJob> jobs, FileStore fileStore, long startTime) {
+    public LeafStatusPage(JobRegistry jobs, FileStore fileStore, long startTime) {
         this.jobs = jobs;
         this.fileStore = fileStore;
         this.startTime = startTime;
@@ -47,7 +46,7 @@ public class LeafStatusPage implements BaseAgent.Handler {
         context.setVariable("version", new Util().getVersion());
 
         List<Object> result = new ArrayList<Object>();
-        for (BaseJob baseJob : Util.safeCopy(jobs)) {
+        for (BaseJob baseJob : jobs.all()) {
             LeafJob lj = (LeafJob) baseJob;
             Map<String, Object> map = new HashMap<String, Object>();
             map.put("name", baseJob.getName());
@@ -72,12 +71,8 @@ public class LeafStatusPage implements BaseAgent.Handler {
     }
 
     private void wipeJobs() {
-        synchronized (jobs) {
-            for (ListIterator<BaseJob> it = jobs.listIterator(); it.hasNext();) {
-                BaseJob baseJob = it.next();
-                if (baseJob.getStatus() == BaseJob.Status.DONE)
-                    it.remove();
-            }
+        for (BaseJob baseJob : jobs.withStatus(BaseJob.Status.DONE)) {
+            jobs.remove(baseJob);
         }
     }
 }
@@ -2,7 +2,6 @@ package testrunner;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -13,9 +12,9 @@ import org.apache.commons.io.IOUtils;
 import testrunner.HttpIface.HttpIfaceException;
 
 public class LogHandler implements BaseAgent.Handler {
-    private List<BaseJob> jobs;
+    private JobRegistry jobs;
 
-    public LogHandler(List<BaseJob> jobs) {
+    public LogHandler(JobRegistry jobs) {
         this.jobs = jobs;
     }
 
@@ -25,13 +24,7 @@ public class LogHandler implements BaseAgent.Handler {
         String pathInfo = request.getPathInfo();
         String id = pathInfo.replaceAll("^/log/", "");
 
-        BaseJob foundJob = null;
-        for (BaseJob baseJob : Util.safeCopy(jobs)) {
-            if (id.equals(baseJob.getName())) {
-                foundJob = baseJob;
-                break;
-            }
-        }
+        BaseJob foundJob = jobs.get(id);
         if (foundJob == null) {
             response.setStatus(404);
         } else {
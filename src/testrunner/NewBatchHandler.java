@@ -0,0 +1,123 @@
+package testrunner;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Creates many jobs with one call. The request is either a JSON {"jobs":[..]}
+ * where every job is what '/new' takes, or a multipart form with that JSON in
+ * the 'jobs' part and the job archives in the other parts. A job refers to its
+ * archive in the form with "jobArchivePart":"<part name>" instead of the
+ * "jobArchiveRef". Every job is validated on its own and the response tells
+ * for each one, in the same order, i.e.
+ * {"results":[{"jobName":"..","success":true},{"jobName":"..","success":false,"message":".."}]}
+ *
+ * The archives that no job has taken are deleted.
+ *
+ * @author vitvitskyy
+ */
+public class NewBatchHandler implements BaseAgent.Handler {
+    private JobRegistry jobs;
+    private NewJobHandler newJobHandler;
+    private FileStore files;
+
+    public NewBatchHandler(BaseJob.JobFactory factory, JobRegistry jobs, FileStore files) {
+        this.jobs = jobs;
+        this.files = files;
+        this.newJobHandler = new NewJobHandler(factory, jobs, files);
+    }
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!"POST".equals(request.getMethod()))
+            return;
+        Map<String, String> parts = new HashMap<String, String>();
+        JsonArray jobRequests;
+        try {
+            JsonObject jsonObject;
+            if (MultipartConfigInjectionHandler.isMultipartRequest(request)) {
+                Part jobsPart = request.getPart("jobs");
+                if (jobsPart == null)
+                    throw new IllegalArgumentException("Invalid batch request, 'jobs' part is missing.");
+                jsonObject = JsonParser.parseReader(new InputStreamReader(jobsPart.getInputStream(), "UTF-8"))
+                        .getAsJsonObject();
+                for (Part part : request.getParts()) {
+                    if (!"jobs".equals(part.getName()))
+                        parts.put(part.getName(), files.addAsInputStream(part.getInputStream()));
+                }
+            } else {
+                jsonObject = JsonParser.parseReader(new InputStreamReader(request.getInputStream(), "UTF-8"))
+                        .getAsJsonObject();
+            }
+            JsonElement jsonElement = jsonObject.get("jobs");
+            if (jsonElement == null)
+                throw new IllegalArgumentException("Invalid batch request, 'jobs' attribute is missing.");
+            jobRequests = jsonElement.getAsJsonArray();
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+            for (String ref : parts.values()) {
+                files.delete(ref);
+            }
+            JsonObject error = new JsonObject();
+            error.addProperty("success", false);
+            error.addProperty("message", e.getMessage());
+            response.setStatus(400);
+            response.getWriter().println(error.toString());
+            return;
+        }
+
+        Map<String, String> manifests = new HashMap<String, String>();
+        Set<String> names = new HashSet<String>();
+        Set<String> taken = new HashSet<String>();
+        JsonArray results = new JsonArray();
+        for (JsonElement jobRequest : jobRequests) {
+            JsonObject result = new JsonObject();
+            try {
+                JsonObject jsonObject = jobRequest.getAsJsonObject();
+                result.addProperty("jobName", JobJournal.getString(jsonObject, "jobName"));
+                String part = JobJournal.getString(jsonObject, "jobArchivePart");
+                if (part != null) {
+                    String ref = parts.get(part);
+                    if (ref == null || taken.contains(part))
+                        throw new IllegalArgumentException(
+                                "Invalid job request, no part '" + part + "' or it's taken by another job.");
+                    jsonObject.addProperty("jobArchiveRef", ref);
+                }
+                BaseJob newJob = newJobHandler.createJob(jsonObject, manifests);
+                if (!names.add(newJob.getName()) || !newJobHandler.addJob(newJob, manifests))
+                    throw new IllegalArgumentException("Duplicate job, job with name '" + newJob.getName() + "' exists.");
+                if (part != null)
+                    taken.add(part);
+                result.addProperty("success", true);
+            } catch (Exception e) {
+                result.addProperty("success", false);
+                result.addProperty("message", e.getMessage());
+            }
+            results.add(result);
+        }
+        for (Map.Entry<String, String> entry : parts.entrySet()) {
+            if (!taken.contains(entry.getKey()))
+                files.delete(entry.getValue());
+        }
+
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.add("results", results);
+        response.setStatus(200);
+        response.setContentType("application/json");
+        response.getWriter().println(jsonObject.toString());
+    }
+}
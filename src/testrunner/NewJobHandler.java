@@ -1,10 +1,12 @@
 package testrunner;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -19,16 +21,17 @@ import com.google.gson.JsonParser;
  * "jobArchiveRef": "xyxasda223akdad" }
  * 
  * where the value "xyxasda223akdad" is whatever unique resource identifier the
- * '/upload' endpoint has returned previously.
+ * '/upload' endpoint has returned previously. The shared assets of the job
+ * need to be stored too, the job takes a reference to each one of its own.
  * 
  * @author vitvitskyy
  */
 public class NewJobHandler implements BaseAgent.Handler {
-    private List<BaseJob> jobs;
+    private JobRegistry jobs;
     private BaseJob.JobFactory factory;
     private FileStore files;
 
-    public NewJobHandler(BaseJob.JobFactory factory, List<BaseJob> jobs, FileStore files) {
+    public NewJobHandler(BaseJob.JobFactory factory, JobRegistry jobs, FileStore files) {
         this.jobs = jobs;
         this.files = files;
         this.factory = factory;
@@ -58,6 +61,54 @@ public class NewJobHandler implements BaseAgent.Handler {
     }
 
     private boolean addJob(JsonObject jsonObject) throws Exception {
+        Map<String, String> manifests = new HashMap<String, String>();
+        BaseJob newJob = createJob(jsonObject, manifests);
+        if (!addJob(newJob, manifests))
+            throw new IllegalArgumentException("Duplicate job, job with name '" + newJob.getName() + "' exists.");
+        return true;
+    }
+
+    /**
+     * Adds the job created by createJob taking a reference to each of its
+     * shared assets on its behalf, the job gives these back once it's done. The
+     * client only needs to keep the assets here until this call.
+     * 
+     * @return false if there's a job with this name already
+     */
+    boolean addJob(BaseJob newJob, Map<String, String> manifests) throws Exception {
+        String manifest = newJob.getJobArchiveRef() == null ? null : manifests.get(newJob.getJobArchiveRef());
+        List<String> claimed = new ArrayList<String>();
+        if (manifest != null) {
+            for (String sharedId : BaseJob.parseSharedAssets(manifest).values()) {
+                if (!files.addRef(sharedId)) {
+                    releaseAll(claimed);
+                    throw new IllegalArgumentException("Could could not start the job '" + newJob.getName()
+                            + "' shared asset '" + sharedId + "' not found.");
+                }
+                claimed.add(sharedId);
+            }
+        }
+        if (!jobs.add(newJob)) {
+            releaseAll(claimed);
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseAll(List<String> claimed) {
+        for (String sharedId : claimed) {
+            files.delete(sharedId);
+        }
+    }
+
+    /**
+     * Validates the job request and creates the job without adding it.
+     * 
+     * @param manifests
+     *            the manifests of the job archives seen so far by the archive
+     *            ref, so that an archive shared by many jobs is only read once
+     */
+    BaseJob createJob(JsonObject jsonObject, Map<String, String> manifests) throws Exception {
         JsonElement jsonElement0 = jsonObject.get("jobName");
         JsonElement jsonElement1 = jsonObject.get("jobArchiveRef");
         JsonElement jsonElement2 = jsonObject.get("remoteJobArchiveRef");
@@ -65,7 +116,7 @@ public class NewJobHandler implements BaseAgent.Handler {
             throw new IllegalArgumentException("Invalid job request, 'jobName' attribute is missing.");
 
         String jobName = jsonElement0.getAsString();
-        if (nameClash(jobName))
+        if (jobs.get(jobName) != null)
             throw new IllegalArgumentException("Duplicate job, job with name '" + jobName + "' exists.");
         
         JsonElement jsonElement6 = jsonObject.getAsJsonObject().get("priority");
@@ -78,11 +129,27 @@ public class NewJobHandler implements BaseAgent.Handler {
                 throw new IllegalArgumentException("Could could not start the job '" + jobName + "' job archive '"
                         + jobArchiveRef + "'not found.");
             }
-            if (!checkManifest(files.get(jobArchiveRef))) {
+            String manifest = manifests.get(jobArchiveRef);
+            if (manifest == null) {
+                manifest = ZipUtils.getFileAsString(files.get(jobArchiveRef), "manifest.json");
+                if (manifest != null)
+                    manifests.put(jobArchiveRef, manifest);
+            }
+            if (manifest == null) {
                 throw new IllegalArgumentException(
                         "Could could not start the job '" + jobName + "' no manifest.json found.");
             }
+            for (String sharedId : BaseJob.parseSharedAssets(manifest).values()) {
+                if (!files.has(sharedId)) {
+                    throw new IllegalArgumentException("Could could not start the job '" + jobName
+                            + "' shared asset '" + sharedId + "' not found.");
+                }
+            }
             newJob = factory.newJob(jobName, jobArchiveRef, priority);
+            JsonElement cpu = JsonParser.parseString(manifest).getAsJsonObject().get("cpu");
+            if (cpu != null) {
+                newJob.updateCpuReq(Math.max(1, cpu.getAsInt()));
+            }
         } else if (jsonElement2 != null) {
             JsonElement jsonElement3 = jsonObject.get("remoteUrl");
             JsonElement jsonElement4 = jsonObject.get("manifest");
@@ -102,22 +169,6 @@ public class NewJobHandler implements BaseAgent.Handler {
             throw new IllegalArgumentException(
                     "Invalid job request, either 'jobArchiveRef' or 'remoteJobArchiveRef' attribute must be present.");
         }
-        synchronized (jobs) {
-            jobs.add(newJob);
-        }
-        return true;
-    }
-
-    private boolean checkManifest(File file) throws IOException {
-        return ZipUtils.getFileAsString(file, "manifest.json") != null;
-    }
-
-    private boolean nameClash(String jobName) {
-        for (BaseJob baseJob : Util.safeCopy(jobs)) {
-            if (jobName.equals(baseJob.getName())) {
-                return true;
-            }
-        }
-        return false;
+        return newJob;
     }
 }
@@ -163,6 +163,8 @@ public class RegressionScheduler implements TestScheduler {
 
     private Descriptor descriptor;
     private File baseFldr;
+    private Map<String, String> sharedAssetIds = new HashMap<String, String>();
+    private Fetcher fetcher;
 
     public RegressionScheduler(Descriptor descriptor) {
         this.descriptor = descriptor;
@@ -221,8 +223,13 @@ public class RegressionScheduler implements TestScheduler {
 
             Map<String, Object> map = new HashMap<String, Object>();
             map.put("run.sh", runSh.toString());
-            map.put("manifest.json", "{\"cpu\":3}");
-            map.put(encBinF.getName(), encBinF);
+            String encBinId = getSharedAssetId(encBinF);
+            jobRequest.addSharedAsset(encBinId, encBinF);
+            // Only the digests of the recons are sent back, the recons are
+            // kept by the agent until they are fetched or released
+            map.put("manifest.json", "{\"cpu\":3,\"shared\":[{\"name\":\"" + encBinF.getName() + "\",\"id\":\""
+                    + encBinId + "\"}],\"digest\":{\"files\":[\"recon.yuv\",\"" + ofName + "_recon.yuv\"],"
+                    + "\"frameSize\":" + (width * height * 3 / 2) + "}}");
 
             ZipUtils.createArchive(map, jobRequest.getJobArchive());
             Log.info("[" + jobRequest.getJobName() + "] Created job archive.");
@@ -232,14 +239,84 @@ public class RegressionScheduler implements TestScheduler {
         }
     }
 
+    /**
+     * The id of a shared asset is the hash of its content, computed only once
+     * per file for the whole run.
+     */
+    private synchronized String getSharedAssetId(File file) throws IOException {
+        String id = sharedAssetIds.get(file.getAbsolutePath());
+        if (id == null) {
+            id = FileStore.hashOf(file);
+            sharedAssetIds.put(file.getAbsolutePath(), id);
+        }
+        return id;
+    }
+
+    /**
+     * Compares two output files by the digests the agent has computed for
+     * them, when they differ tells the first frame that does.
+     */
+    private static CompareFilesStatus compareDigests(JobRequest jobRequest, String digests, String fileAPath,
+            String fileBPath) {
+        JsonObject jsonObject = JsonParser.parseString(digests).getAsJsonObject().get("files").getAsJsonObject();
+        JsonElement digestA = jsonObject.get(fileAPath);
+        if (digestA == null)
+            return CompareFilesStatus.FILE_A_NOT_FOUND;
+        JsonElement digestB = jsonObject.get(fileBPath);
+        if (digestB == null)
+            return CompareFilesStatus.FILE_B_NOT_FOUND;
+        if (digestA.getAsJsonObject().get("sha256").equals(digestB.getAsJsonObject().get("sha256")))
+            return CompareFilesStatus.EQUAL;
+        JsonArray framesA = digestA.getAsJsonObject().get("frames").getAsJsonArray();
+        JsonArray framesB = digestB.getAsJsonObject().get("frames").getAsJsonArray();
+        int frame = 0;
+        while (frame < framesA.size() && frame < framesB.size() && framesA.get(frame).equals(framesB.get(frame)))
+            ++frame;
+        Log.info("[" + jobRequest.getJobName() + "] Recons differ starting at frame " + frame + ".");
+        return CompareFilesStatus.NON_EQUAL;
+    }
+
+    /**
+     * The recons that were only digested are kept by the agent, they are
+     * fetched next to the result archive when they differ and released
+     * otherwise.
+     */
+    private void fetchRecons(JobRequest jobRequest, String digests, boolean mismatch, File resultArchive) {
+        String ref = JobJournal.getString(JsonParser.parseString(digests).getAsJsonObject(), "archiveRef");
+        if (ref == null || fetcher == null)
+            return;
+        try {
+            if (mismatch) {
+                File dest = new File(resultArchive.getParentFile(), jobRequest.getJobName() + "_recons.zip");
+                fetcher.fetch(ref, dest);
+                Log.info("[" + jobRequest.getJobName() + "] Saved the recons to '" + dest.getAbsolutePath() + "'.");
+            } else {
+                fetcher.release(ref);
+            }
+        } catch (IOException e) {
+            Log.error("[" + jobRequest.getJobName() + "] Couldn't " + (mismatch ? "fetch" : "release")
+                    + " the recons '" + ref + "'.");
+        }
+    }
+
+    @Override
+    public void setFetcher(Fetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
     @Override
     public JobResult processResult(TestScheduler.JobRequest jobRequest_, File resultArchive) {
         JobRequest jobRequest = (JobRequest) jobRequest_;
-        try {
-            String stdout = ZipUtils.getFileAsString(resultArchive, "stdout.log");
+        try (ZipUtils.Reader reader = new ZipUtils.Reader(resultArchive)) {
+            String stdout = reader.getFileAsString("stdout.log");
             String ofName = getOfName(descriptor.getStreams()[jobRequest.getStrmIdx()]);
             
-            CompareFilesStatus compareResult = ZipUtils.compareFiles(resultArchive, "recon.yuv", ofName + "_recon.yuv");
+            String digests = reader.getFileAsString("digests.json");
+            CompareFilesStatus compareResult = digests != null
+                    ? compareDigests(jobRequest, digests, "recon.yuv", ofName + "_recon.yuv")
+                    : reader.compareFiles("recon.yuv", ofName + "_recon.yuv");
+            if (digests != null)
+                fetchRecons(jobRequest, digests, compareResult == CompareFilesStatus.NON_EQUAL, resultArchive);
 
             if (compareResult == CompareFilesStatus.FILE_A_NOT_FOUND) {
                 Log.error("[" + jobRequest.getJobName() + "] Job result did not contain recon file.");
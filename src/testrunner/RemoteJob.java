@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -21,6 +23,7 @@ public class RemoteJob {
     private String resultArchiveRef;
     private File resultArchive;
     private Callable doneCallback;
+    private Runnable finishedListener;
     private Object callbackResult;
     private AgentConnection agent;
     private String jobArchiveRef;
@@ -30,7 +33,8 @@ public class RemoteJob {
     private File jobArchive;
     private boolean missing;
     private int priority;
-    
+    private Map<String, File> sharedAssets = new HashMap<String, File>();
+
     public static final RemoteJob WAIT = new RemoteJob("wait", 255, null);
 
     public RemoteJob(String name, int priority, AgentConnection agent) {
@@ -65,13 +69,19 @@ public class RemoteJob {
     public void updateStatus(String status) {
         Status newStatus = BaseJob.Status.valueOf(status);
         boolean fireDoneCallback;
+        Runnable fireFinished = null;
         synchronized (this) {
             fireDoneCallback = this.status != newStatus && newStatus == BaseJob.Status.DONE;
             if (this.status != newStatus) {
                 Log.debug("[" + name + "] Status update " + this.status + " -> " + newStatus);
             }
+            boolean wasFinished = isFinished();
             this.status = newStatus;
+            if (!wasFinished && isFinished())
+                fireFinished = finishedListener;
         }
+        if (fireFinished != null)
+            fireFinished.run();
 
         if (fireDoneCallback && doneCallback != null) {
             try {
@@ -102,7 +112,7 @@ public class RemoteJob {
         File temp = File.createTempFile("stan", "cool");
         URL downloadUrl = new URL(new URL(agent.getUrl()), "/download/" + resultArchiveRef + "?option=delete");
         Log.info("[" + name + "] Downloading result from '" + downloadUrl.toExternalForm() + "'");
-        try (InputStream is = http.openUrlStream(downloadUrl)) {
+        try (InputStream is = http.openResumableStream(downloadUrl)) {
             FileUtils.copyInputStreamToFile(is, temp);
         }
         resultArchive = temp;
@@ -115,6 +125,21 @@ public class RemoteJob {
         }
     }
 
+    /**
+     * Sets the listener that is called every time the job finishes, either
+     * with DONE or ERROR, or goes missing. It's called right away if the job
+     * has finished already.
+     */
+    public void setFinishedListener(Runnable listener) {
+        boolean finished;
+        synchronized (this) {
+            this.finishedListener = listener;
+            finished = isFinished();
+        }
+        if (finished)
+            listener.run();
+    }
+
     public <T> Future<T> onFinished(Callable<T> runnable) {
         if (this.doneCallback != null)
             throw new IllegalStateException("Can set callback only once");
@@ -197,6 +222,14 @@ public class RemoteJob {
         return jobArchive;
     }
 
+    public void updateSharedAssets(Map<String, File> sharedAssets) {
+        this.sharedAssets = sharedAssets;
+    }
+
+    public Map<String, File> getSharedAssets() {
+        return sharedAssets;
+    }
+
     public void setStatus(Status new1) {
         this.status = new1;
 
@@ -206,8 +239,18 @@ public class RemoteJob {
         return missing;
     }
 
+    /**
+     * Marks the job as lost by the agent, this is reported to the finished
+     * listener as nothing else is going to happen to the job.
+     */
     public void setMissing(boolean b) {
-        this.missing = true;
+        Runnable fireMissing;
+        synchronized (this) {
+            fireMissing = !missing && b ? finishedListener : null;
+            this.missing = b;
+        }
+        if (fireMissing != null)
+            fireMissing.run();
     }
 
     public int getPriority() {
@@ -0,0 +1,112 @@
+package testrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Keeps the results of the jobs between the runs so that a job that would
+ * produce the same result isn't run again. The key is whatever identifies the
+ * job completely, i.e. the hash of the encoder binary together with the
+ * script that runs it. Every result is a small JSON file named by the hash of
+ * its key.
+ *
+ * When the cache grows over its size the results that were least recently
+ * used go first. The public API is thread safe.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class ResultCache {
+    private static final String SUFFIX = ".json";
+
+    private File folder;
+    private long maxSize;
+    private long size;
+
+    public ResultCache(File folder, long maxSize) {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        folder.mkdirs();
+        for (File file : list()) {
+            size += file.length();
+        }
+    }
+
+    /**
+     * @return the stored result or null if there's none
+     */
+    public synchronized JsonObject get(String key) {
+        File file = fileFor(key);
+        if (!file.exists())
+            return null;
+        try {
+            JsonObject result = JsonParser.parseString(FileUtils.readFileToString(file, StandardCharsets.UTF_8))
+                    .getAsJsonObject();
+            file.setLastModified(System.currentTimeMillis());
+            return result;
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            Log.warn("Dropping a broken cached result '" + file.getName() + "'.");
+            size -= file.length();
+            file.delete();
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, JsonObject result) {
+        File file = fileFor(key);
+        File tmp = new File(folder, file.getName() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tmp, result.toString(), StandardCharsets.UTF_8);
+            size -= file.length();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            size += file.length();
+        } catch (IOException e) {
+            Log.error("Couldn't cache a result in '" + folder.getAbsolutePath() + "'.");
+            Log.error(e);
+            tmp.delete();
+            return;
+        }
+        if (size > maxSize)
+            evict();
+    }
+
+    /**
+     * Removes the least recently used results until the cache is down to 90%
+     * of its size, so that this doesn't happen on every put.
+     */
+    private void evict() {
+        File[] files = list();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        int removed = 0;
+        for (File file : files) {
+            if (size <= maxSize * 9 / 10)
+                break;
+            size -= file.length();
+            file.delete();
+            ++removed;
+        }
+        Log.info("Evicted " + removed + " results from the result cache.");
+    }
+
+    private File[] list() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return files == null ? new File[0] : files;
+    }
+
+    private File fileFor(String key) {
+        byte[] hash = FileStore.newDigest().digest(key.getBytes(StandardCharsets.UTF_8));
+        return new File(folder, FileStore.toHex(hash) + SUFFIX);
+    }
+}
@@ -0,0 +1,104 @@
+package testrunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import testrunner.HttpIface.HttpIfaceException;
+
+/**
+ * Reads a download and picks it up where it broke off should the connection
+ * fail, the rest is asked for with a 'Range' header. If the server ignores the
+ * range the part that was already read is skipped.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class ResumableInputStream extends InputStream {
+    private static final int MAX_RETRIES = 5;
+
+    private HttpIface http;
+    private URL url;
+    private InputStream is;
+    private long pos;
+    private int retries;
+
+    public ResumableInputStream(HttpIface http, URL url) throws HttpIfaceException {
+        this.http = http;
+        this.url = url;
+        this.is = open(http.openDownload(url, 0));
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            try {
+                int b = is.read();
+                if (b != -1)
+                    ++pos;
+                return b;
+            } catch (IOException e) {
+                resume(e);
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            try {
+                int read = is.read(b, off, len);
+                if (read > 0)
+                    pos += read;
+                return read;
+            } catch (IOException e) {
+                resume(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        is.close();
+    }
+
+    private void resume(IOException cause) throws IOException {
+        if (++retries > MAX_RETRIES)
+            throw cause;
+        Log.warn("Download of '" + url.toExternalForm() + "' broke off at " + pos + " bytes, resuming.");
+        try {
+            is.close();
+        } catch (IOException e) {
+            // The connection is broken anyway
+        }
+        HttpResponse response;
+        InputStream content;
+        try {
+            response = http.openDownload(url, pos);
+            content = open(response);
+        } catch (HttpIfaceException e) {
+            throw new IOException(e);
+        }
+        if (response.getStatusLine().getStatusCode() != 206) {
+            IOUtils.skipFully(content, pos);
+        }
+        is = content;
+    }
+
+    private static InputStream open(HttpResponse response) throws HttpIfaceException {
+        int code = response.getStatusLine().getStatusCode();
+        try {
+            if (code != 200 && code != 206) {
+                EntityUtils.consume(response.getEntity());
+                throw new HttpIfaceException("Download failed with status " + code + ".");
+            }
+            return response.getEntity().getContent();
+        } catch (IOException e) {
+            throw new HttpIfaceException(e);
+        }
+    }
+}
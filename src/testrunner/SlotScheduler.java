@@ -0,0 +1,115 @@
+package testrunner;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Decides which of the waiting jobs of a leaf agent can start. Every core of
+ * the machine is one CPU unit, a job is only started when the CPU units it
+ * declares in its manifest are free, and among the jobs that fit the one of
+ * the highest priority goes first. A job declaring more units than the machine
+ * has takes the whole machine. The public API is thread safe.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class SlotScheduler implements StatusHandler.Capacity {
+    private int totalCPU;
+    private int usedCPU;
+    private int queuedCPU;
+    private PriorityQueue<BaseJob> queue;
+    private Map<BaseJob, Integer> waiting;
+    private Map<BaseJob, Integer> running;
+
+    public SlotScheduler(int totalCPU) {
+        this.totalCPU = totalCPU;
+        this.queue = new PriorityQueue<BaseJob>(
+                Comparator.comparingInt(BaseJob::getPriority).thenComparingLong(BaseJob::getRegistryKey));
+        this.waiting = new HashMap<BaseJob, Integer>();
+        this.running = new HashMap<BaseJob, Integer>();
+    }
+
+    /**
+     * Puts the job in line to run.
+     */
+    public synchronized void add(BaseJob job) {
+        if (waiting.containsKey(job) || running.containsKey(job))
+            return;
+        int cpu = cpuOf(job);
+        waiting.put(job, cpu);
+        queue.add(job);
+        queuedCPU += cpu;
+    }
+
+    /**
+     * Takes the job out of the line if it hasn't started yet.
+     */
+    public synchronized void remove(BaseJob job) {
+        Integer cpu = waiting.remove(job);
+        if (cpu == null)
+            return;
+        queue.remove(job);
+        queuedCPU -= cpu;
+    }
+
+    /**
+     * Reserves the CPU units for as many waiting jobs as fit, in the order of
+     * priority.
+     *
+     * @return the jobs that can be started now
+     */
+    public synchronized List<BaseJob> admit() {
+        List<BaseJob> result = new ArrayList<BaseJob>();
+        List<BaseJob> skipped = new ArrayList<BaseJob>();
+        while (usedCPU < totalCPU && !queue.isEmpty()) {
+            BaseJob job = queue.poll();
+            int cpu = waiting.get(job);
+            if (usedCPU + cpu > totalCPU) {
+                skipped.add(job);
+                continue;
+            }
+            waiting.remove(job);
+            queuedCPU -= cpu;
+            usedCPU += cpu;
+            running.put(job, cpu);
+            result.add(job);
+        }
+        queue.addAll(skipped);
+        return result;
+    }
+
+    /**
+     * Frees the CPU units of a job that has finished.
+     */
+    public synchronized void release(BaseJob job) {
+        Integer cpu = running.remove(job);
+        if (cpu != null)
+            usedCPU -= cpu;
+    }
+
+    @Override
+    public int getTotalCPU() {
+        return totalCPU;
+    }
+
+    /**
+     * The CPU units that are neither used by the running jobs nor claimed by
+     * the waiting ones.
+     */
+    @Override
+    public synchronized int getAvailableCPU() {
+        return Math.max(0, totalCPU - usedCPU - queuedCPU);
+    }
+
+    public synchronized int getUsedCPU() {
+        return usedCPU;
+    }
+
+    private int cpuOf(BaseJob job) {
+        return Math.min(Math.max(1, job.getCpuReq()), totalCPU);
+    }
+}
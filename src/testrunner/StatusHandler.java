@@ -1,20 +1,43 @@
 package testrunner;
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.List;
+import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import testrunner.BaseJob.Status;
 
+/**
+ * Reports the jobs of this agent. With '/status?since=N&epoch=E' only the jobs
+ * that have changed after the version N are listed, the version to ask for
+ * next time is in the response. The epoch identifies this run of the agent,
+ * when it doesn't match the full list is sent and marked with "full":true.
+ * Otherwise the names of the jobs removed since are in "removed", if the agent
+ * doesn't remember them all anymore the full list is sent.
+ */
 public class StatusHandler implements BaseAgent.Handler {
+    private static final String EPOCH = UUID.randomUUID().toString();
 
-    private List<BaseJob> jobs;
+    private JobRegistry jobs;
+    private Capacity capacity;
 
-    public StatusHandler(List<BaseJob> jobs) {
+    /**
+     * Tells how many CPUs the agent has for the new jobs.
+     */
+    public static interface Capacity {
+        int getTotalCPU();
+
+        int getAvailableCPU();
+    }
+
+    public StatusHandler(JobRegistry jobs) {
+        this(jobs, null);
+    }
+
+    public StatusHandler(JobRegistry jobs, Capacity capacity) {
         this.jobs = jobs;
+        this.capacity = capacity;
     }
 
     @Override
@@ -24,26 +47,63 @@ public class StatusHandler implements BaseAgent.Handler {
         StringBuilder txt = new StringBuilder();
         int nThreads = Runtime.getRuntime().availableProcessors();
 
-        int cpuUsed = 0;
+        String sinceParam = request.getParameter("since");
+        long since = sinceParam != null && sinceParam.matches("[0-9]+") ? Long.parseLong(sinceParam) : -1;
+        boolean full = since < 0 || !EPOCH.equals(request.getParameter("epoch")) || !jobs.knowsRemovalsSince(since);
+        // Taken before looking at the jobs so that a change made meanwhile is
+        // sent again next time rather than lost
+        long version = BaseJob.getLastVersion();
+
+        int availableCPU;
+        if (capacity != null) {
+            nThreads = capacity.getTotalCPU();
+            availableCPU = capacity.getAvailableCPU();
+        } else {
+            int cpuUsed = 0;
+            for (Status status : Status.values()) {
+                if (status == Status.DONE)
+                    continue;
+                for (BaseJob job : jobs.withStatus(status)) {
+                    if (job instanceof LeafJob) {
+                        cpuUsed += ((LeafJob) job).getCpuReq();
+                    }
+                }
+            }
+            availableCPU = Math.max(0, nThreads - cpuUsed);
+        }
         txt.append("{");
+        txt.append("\"epoch\":\"" + EPOCH + "\",");
+        txt.append("\"version\":" + version + ",");
+        txt.append("\"full\":" + full + ",");
         txt.append("\"jobs\": [");
-        for (Iterator<BaseJob> it = Util.safeCopy(jobs).iterator(); it.hasNext();) {
-            BaseJob job = it.next();
+        boolean first = true;
+        for (BaseJob job : full ? jobs.all() : jobs.changedSince(since)) {
+            if (!first) {
+                txt.append(",");
+            }
+            first = false;
             txt.append("{");
             txt.append("\"jobArchiveRef\":\"" + job.getJobArchiveRef() + "\",");
             txt.append("\"resultArchiveRef\":\"" + job.getResultArchiveRef() + "\",");
             txt.append("\"name\":\"" + job.getName() + "\",");
             txt.append("\"status\":\"" + job.getStatus() + "\"");
             txt.append("}");
-            if (it.hasNext()) {
-                txt.append(",");
-            }
-            if (job.getStatus() != Status.DONE && (job instanceof LeafJob)) {
-                cpuUsed += ((LeafJob) job).getCpuReq();
-            }
         }
         txt.append("],");
-        txt.append("\"availableCPU\":" + Math.max(0, nThreads - cpuUsed));
+        if (!full) {
+            txt.append("\"removed\": [");
+            first = true;
+            for (String name : jobs.removedSince(since)) {
+                if (!first) {
+                    txt.append(",");
+                }
+                first = false;
+                txt.append("\"" + name + "\"");
+            }
+            txt.append("],");
+        }
+        txt.append("\"availableCPU\":" + availableCPU + ",");
+        txt.append("\"totalCPU\":" + nThreads);
         txt.append("}");
 
         response.getWriter().println(txt.toString());
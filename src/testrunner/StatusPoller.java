@@ -0,0 +1,231 @@
+package testrunner;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
+
+import testrunner.HttpIface.HttpIfaceException;
+
+/**
+ * Polls the status of many agents without blocking a thread per agent. The
+ * requests go out through a non-blocking HTTP client served by a couple of I/O
+ * threads, a single timer thread starts the polls and enforces the deadlines.
+ * An agent is not polled again while its previous poll is still in flight,
+ * the responses are handed to the given executor for processing.
+ *
+ * The size of the connection pool can be changed with the
+ * 'testrunner.http.status.maxTotal' system property.
+ *
+ * @author vitvitskyy
+ *
+ */
+public class StatusPoller {
+    private CloseableHttpAsyncClient client;
+    private ScheduledExecutorService timer;
+    private Executor executor;
+    private RequestConfig requestConfig;
+    private long deadline;
+    private Map<Target, Long> targets = new ConcurrentHashMap<Target, Long>();
+    private Set<Request> inFlight = ConcurrentHashMap.newKeySet();
+
+    public static interface Callback {
+        /**
+         * Called with the body of the response.
+         */
+        void completed(String body);
+
+        /**
+         * Called when the agent couldn't be reached or didn't answer in time.
+         */
+        void failed(Exception e);
+    }
+
+    /**
+     * An agent that is polled periodically.
+     */
+    public static interface Target extends Callback {
+        URL getStatusUrl() throws IOException;
+    }
+
+    /**
+     * @param executor
+     *            runs the callbacks
+     * @param connectionTimeout
+     *            in milliseconds
+     * @param deadline
+     *            the time in milliseconds an agent has to send the whole
+     *            response
+     */
+    public StatusPoller(Executor executor, int connectionTimeout, int deadline) throws HttpIfaceException {
+        this.executor = executor;
+        this.deadline = deadline;
+        this.requestConfig = RequestConfig.custom().setConnectTimeout(connectionTimeout).setSocketTimeout(deadline)
+                .build();
+        try {
+            int maxTotal = Integer.getInteger("testrunner.http.status.maxTotal", 1024);
+            client = HttpAsyncClients.custom()
+                    .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                            .setIoThreadCount(Math.min(4, Runtime.getRuntime().availableProcessors())).build())
+                    .setMaxConnTotal(maxTotal).setMaxConnPerRoute(2)
+                    .setSSLContext(new SSLContextBuilder().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build())
+                    .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE).build();
+        } catch (Exception e) {
+            throw new HttpIfaceException(e);
+        }
+        client.start();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Exception e) {
+                    Log.error("Problem polling the agents");
+                    Log.error(e);
+                }
+            }
+        }, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts polling the agent once a second.
+     */
+    public void add(Target target) {
+        targets.put(target, 0L);
+    }
+
+    public void remove(Target target) {
+        targets.remove(target);
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Makes a single request, the callback is called exactly once.
+     */
+    public void get(URL url, Callback callback) {
+        new Request(url, callback).start();
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+        try {
+            client.close();
+        } catch (IOException e) {
+            Log.error(e);
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Request request : inFlight) {
+            if (now - request.startTime > deadline && request.future != null)
+                request.future.cancel(true);
+        }
+        for (Map.Entry<Target, Long> entry : targets.entrySet()) {
+            Target target = entry.getKey();
+            // Still waiting for the previous poll
+            if (entry.getValue() != 0 || !targets.replace(target, 0L, now))
+                continue;
+            try {
+                get(target.getStatusUrl(), new Callback() {
+                    @Override
+                    public void completed(String body) {
+                        try {
+                            target.completed(body);
+                        } finally {
+                            targets.replace(target, now, 0L);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        try {
+                            target.failed(e);
+                        } finally {
+                            targets.replace(target, now, 0L);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                targets.replace(target, now, 0L);
+                Log.error(e);
+            }
+        }
+    }
+
+    private class Request implements FutureCallback<HttpResponse> {
+        private URL url;
+        private Callback callback;
+        private long startTime;
+        private volatile Future<HttpResponse> future;
+
+        public Request(URL url, Callback callback) {
+            this.url = url;
+            this.callback = callback;
+        }
+
+        public void start() {
+            HttpGet httpget = new HttpGet(url.toExternalForm());
+            httpget.setConfig(requestConfig);
+            startTime = System.currentTimeMillis();
+            inFlight.add(this);
+            future = client.execute(httpget, this);
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            try {
+                finish(EntityUtils.toString(response.getEntity()), null);
+            } catch (IOException e) {
+                finish(null, e);
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            finish(null, e);
+        }
+
+        @Override
+        public void cancelled() {
+            finish(null, new SocketTimeoutException("No status from '" + url + "' within " + deadline + "ms"));
+        }
+
+        private void finish(String body, Exception e) {
+            if (!inFlight.remove(this))
+                return;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (e == null)
+                        callback.completed(body);
+                    else
+                        callback.failed(e);
+                }
+            });
+        }
+    }
+}
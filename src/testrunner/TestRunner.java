@@ -2,16 +2,24 @@ package testrunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
 
 import testrunner.HttpIface.HttpIfaceException;
 import testrunner.TestScheduler.JobRequest;
@@ -25,39 +33,72 @@ import testrunner.TestScheduler.JobResult;
  */
 public class TestRunner {
     private static final int MAX_RETRIES = 100;
+    private static final int DEFAULT_LOOKAHEAD = 256;
     private TestScheduler scheduler;
     private HttpIface http;
+    private ScheduledExecutorService executor;
+    private AgentConnection agent;
+    private int unfinished;
+    private List<Job> jobs = new ArrayList<Job>();
+    private File resultsFldr;
+    private Set<Job> changes = new LinkedHashSet<Job>();
+    private Queue<Job> readyJobs = new ConcurrentLinkedQueue<Job>();
+    private AtomicBoolean submitRequested = new AtomicBoolean();
+    private Semaphore archives;
+    private Queue<Job> waitingForArchive = new ConcurrentLinkedQueue<Job>();
 
     public TestRunner(TestScheduler scheduler) throws HttpIfaceException {
+        this(scheduler, DEFAULT_LOOKAHEAD);
+    }
+
+    /**
+     * @param lookahead
+     *            how many job archives may exist at a time, an archive is
+     *            created only when there's room and deleted as soon as the
+     *            agent has taken it
+     */
+    public TestRunner(TestScheduler scheduler, int lookahead) throws HttpIfaceException {
         this.scheduler = scheduler;
         this.http = new HttpIface(1000 /* connectionTimeout */, 20000 /* socketTimeout */);
+        this.archives = new Semaphore(Math.max(1, lookahead));
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 3) {
-            System.out.println("Syntax: scheduler <agent url> <base folder> <scheduler>");
+        List<String> a = new ArrayList<String>(Arrays.asList(args));
+        String lookahead = CmdUtils.getArgForKey(a, "-lookahead");
+        if (a.size() < 3) {
+            System.out.println("Syntax: scheduler [-lookahead <n>] <agent url> <base folder> <scheduler>");
+            System.out.println("  Where:");
+            System.out.println("          lookahead How many job archives are created ahead of the agent taking them ("
+                    + DEFAULT_LOOKAHEAD + ").");
             return;
         }
-        String schedulerName = args[2];
+        String schedulerName = a.get(2);
+        String[] schedulerArgs = a.subList(3, a.size()).toArray(new String[0]);
         TestScheduler scheduler = null;
         if ("compare".equals(schedulerName)) {
-            scheduler = CompareScheduler.create(Arrays.copyOfRange(args, 3, args.length));
+            scheduler = CompareScheduler.create(schedulerArgs);
         } else if ("regression".equals(schedulerName)) {
-            scheduler = RegressionScheduler.create(Arrays.copyOfRange(args, 3, args.length));
+            scheduler = RegressionScheduler.create(schedulerArgs);
         } else {
             System.out.println("Unknown scheduler: '" + schedulerName + "'");
         }
         if (scheduler == null)
             return;
 
-        new TestRunner(scheduler).run(args[0], new File(args[1]));
+        new TestRunner(scheduler, lookahead == null ? DEFAULT_LOOKAHEAD : Integer.parseInt(lookahead)).run(a.get(0),
+                new File(a.get(1)));
     }
 
+    /**
+     * Prints the jobs that have changed their state since the last time it
+     * looked, once a second.
+     */
     public static class JobOverviewThread extends Thread {
-        private List<Job> jobs;
+        private TestRunner runner;
 
-        public JobOverviewThread(List<Job> jobs) {
-            this.jobs = jobs;
+        public JobOverviewThread(TestRunner runner) {
+            this.runner = runner;
         }
 
         @Override
@@ -70,22 +111,20 @@ public class TestRunner {
 
             boolean allDone = false;
             while (!allDone) {
+                allDone = runner.isFinished();
                 int lines = 0;
-                allDone = true;
-                for (Job job : jobs) {
-                    if (job.switchedState()) {
-                        if (job.state == JobState.ERROR) {
-                            ++maxLines;
-                        }
-                        if (lines < maxLines && job.state != JobState.DONE) {
-                            System.out.print(((char) 27) + "[K");
-                            System.out.print(((char) 27) + "[" + stateToColor(job.state) + "m");
-                            System.out.println("  " + job.getDescription()
-                                    + (job.extraInfo != null ? "(" + job.extraInfo + ")" : ""));
-                            ++lines;
-                        }
+                for (Job job : runner.takeChanges()) {
+                    JobState state = job.state;
+                    if (state == JobState.ERROR) {
+                        ++maxLines;
+                    }
+                    if (lines < maxLines && state != JobState.DONE) {
+                        System.out.print(((char) 27) + "[K");
+                        System.out.print(((char) 27) + "[" + stateToColor(state) + "m");
+                        System.out.println(
+                                "  " + job.getDescription() + (job.extraInfo != null ? "(" + job.extraInfo + ")" : ""));
+                        ++lines;
                     }
-                    allDone &= job.isDone();
                 }
                 for (int i = lines; i < maxLines; i++) {
                     System.out.println(((char) 27) + "[K");
@@ -127,43 +166,63 @@ public class TestRunner {
         }
     };
 
+    /**
+     * Nothing here polls the jobs, a job moves on when something happens to
+     * it: its archive is created, the agent takes it, the agent reports it
+     * finished or its result is processed. So the work done is proportional to
+     * the number of these events rather than to the number of jobs.
+     */
     public void run(String agentUrl, File baseFldr) throws Exception {
         int nThreads = Math.min(64, Runtime.getRuntime().availableProcessors() * 8);
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(nThreads);
+        executor = Executors.newScheduledThreadPool(nThreads);
 
         ScheduledExecutorService executor2 = Executors.newScheduledThreadPool(1);
 
-        AgentConnection agent = new AgentConnection(agentUrl, true, executor2, http);
+        // The archives are gone once the agent has them, a job that goes
+        // missing is scheduled again by the runner with a new archive
+        agent = new AgentConnection(agentUrl, false, executor2, http);
         agent.scheduleStatusCheck();
 
-        scheduler.init(baseFldr);
-
-        List<Job> jobs = scheduleJobs(agent, scheduler, baseFldr, executor);
-        new JobOverviewThread(jobs).start();
-
-        // Main loop
-        Log.info("Waiting for the jobs.");
-        List<JobResult> results = new ArrayList<JobResult>();
-        boolean allDone = false;
-        while (!allDone) {
-            allDone = true;
-            for (Job job : jobs) {
-                //if (job.state == JobState.READY) job.ready = true;
-                if (!job.isDone() && job.isReady()) {
-                    job.iterate(executor);
+        scheduler.setFetcher(new TestScheduler.Fetcher() {
+            @Override
+            public void fetch(String ref, File dest) throws IOException {
+                try (InputStream is = http
+                        .openResumableStream(new URL(new URL(agent.getUrl()), "/download/" + ref + "?option=delete"))) {
+                    FileUtils.copyInputStreamToFile(is, dest);
+                } catch (HttpIfaceException e) {
+                    throw new IOException(e);
                 }
+            }
 
-                allDone &= job.isDone();
+            @Override
+            public void release(String ref) throws IOException {
+                try {
+                    HttpResponse response = http
+                            .openConnection(new URL(new URL(agent.getUrl()), "/download/" + ref + "?option=release"));
+                    EntityUtils.consume(response.getEntity());
+                } catch (HttpIfaceException e) {
+                    throw new IOException(e);
+                }
             }
+        });
+        scheduler.init(baseFldr);
 
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
+        List<JobRequest> requests = generateJobRequests(scheduler, baseFldr);
+        addJobs(requests);
+        new JobOverviewThread(this).start();
+
+        Log.info("Waiting for the jobs.");
+        synchronized (this) {
+            while (unfinished > 0) {
+                wait();
             }
         }
 
-        for (Job job : jobs) {
-            results.add(job.getResult());
+        List<JobResult> results = new ArrayList<JobResult>();
+        synchronized (this) {
+            for (Job job : jobs) {
+                results.add(job.getResult());
+            }
         }
 
         agent.shutdown();
@@ -175,37 +234,121 @@ public class TestRunner {
         executor.awaitTermination(Integer.MAX_VALUE, TimeUnit.SECONDS);
     }
 
+    private synchronized boolean isFinished() {
+        return unfinished == 0;
+    }
+
+    /**
+     * Starts the jobs, these may come at any time during the run, i.e. from
+     * the follow up of a finished job.
+     */
+    private void addJobs(List<JobRequest> requests) {
+        List<Job> added = new ArrayList<Job>();
+        for (JobRequest jobRequest : requests) {
+            added.add(new Job(jobRequest, resultsFldr));
+        }
+        synchronized (this) {
+            jobs.addAll(added);
+            unfinished += added.size();
+        }
+        for (Job job : added) {
+            job.start();
+        }
+    }
+
+    private synchronized void jobFinished() {
+        if (--unfinished == 0)
+            notifyAll();
+    }
+
+    private void stateChanged(Job job) {
+        synchronized (changes) {
+            changes.add(job);
+        }
+    }
+
+    /**
+     * @return the jobs that have changed their state since the last call
+     */
+    private List<Job> takeChanges() {
+        synchronized (changes) {
+            List<Job> result = new ArrayList<Job>(changes);
+            changes.clear();
+            return result;
+        }
+    }
+
+    /**
+     * Puts the job in line for its archive, the archives are created in this
+     * order as the room for them frees up.
+     */
+    private void needArchive(Job job) {
+        waitingForArchive.add(job);
+        createArchives();
+    }
+
+    private void createArchives() {
+        while (!waitingForArchive.isEmpty() && archives.tryAcquire()) {
+            Job job = waitingForArchive.poll();
+            if (job == null) {
+                archives.release();
+                break;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    job.createArchive();
+                }
+            });
+        }
+    }
+
+    private void archiveDropped() {
+        archives.release();
+        createArchives();
+    }
+
+    /**
+     * Puts the job in line to be scheduled with the agent, the jobs that
+     * become ready at about the same time go in one batch.
+     */
+    private void ready(Job job) {
+        readyJobs.add(job);
+        if (!submitRequested.compareAndSet(false, true))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                submitRequested.set(false);
+                List<Job> batch = new ArrayList<Job>();
+                Job next;
+                while ((next = readyJobs.poll()) != null) {
+                    batch.add(next);
+                }
+                if (!batch.isEmpty())
+                    scheduleBatch(batch);
+            }
+        });
+    }
+
     private enum JobState {
         INIT, RETRYING, RETRY, READY, RUNNING, PROCESSED, DONE, ERROR
     };
 
-    private class Job implements Runnable {
-        AgentConnection agent;
+    private class Job {
         RemoteJob rj;
         JobRequest req;
         volatile JobState state;
-        volatile boolean ready;
-        long timeWhenReady;
         int retries;
         File resultsFldr;
-        String errorDesc;
         private JobResult result;
-        private JobState savedState;
-        private String extraInfo;
+        private volatile String extraInfo;
+        private boolean hasArchive;
 
-        public Job(AgentConnection agent, JobRequest jobRequest, File resultsFldr) {
-            this.agent = agent;
+        public Job(JobRequest jobRequest, File resultsFldr) {
             this.req = jobRequest;
             this.resultsFldr = resultsFldr;
-            this.ready = true;
             this.state = JobState.INIT;
-            this.timeWhenReady = 0;
-        }
-
-        public boolean switchedState() {
-            boolean result = savedState != state;
-            savedState = state;
-            return result;
         }
 
         public String getDescription() {
@@ -216,90 +359,154 @@ public class TestRunner {
             return result;
         }
 
-        @Override
-        public synchronized void run() {
+        private void setState(JobState state) {
+            this.state = state;
+            stateChanged(this);
+            if (state == JobState.DONE || state == JobState.ERROR) {
+                // Whatever way the job ends its archive makes room for the
+                // next one
+                dropArchive();
+                // The follow up jobs are counted before this one is done so
+                // that the run doesn't end in between
+                try {
+                    addJobs(scheduler.followUp(req, state == JobState.DONE ? result : null));
+                } catch (Exception e) {
+                    Log.error("[" + req.getJobName() + "] Couldn't get the follow up jobs.");
+                    Log.error(e);
+                }
+                jobFinished();
+            }
+        }
+
+        public void start() {
+            needArchive(this);
+        }
+
+        private void createArchive() {
             try {
-                switch (state) {
-                case INIT:
-                    scheduler.createJobArchive(req);
-                    state = JobState.READY;
-                    break;
-                case RETRY:
-                    if (System.currentTimeMillis() > timeWhenReady) {
-                        extraInfo = null;
-                        state = JobState.READY;
-                    }
-                    break;
-                case RETRYING:
-                    if (retries > MAX_RETRIES) {
-                        extraInfo = "Couldn't schedule a job at all after " + MAX_RETRIES + " retries.";
-                        state = JobState.ERROR;
-                    } else {
-                        long retryTime = (long) (Math.random() * 10000);
-                        timeWhenReady = System.currentTimeMillis() + retryTime;
-                        ++retries;
-                        extraInfo = errorDesc + ", retrying in " + retryTime + "ms.";
-                        state = JobState.RETRY;
-                    }
-                    break;
-                case READY:
-                    try {
-                        rj = agent.scheduleJob(req.getJobName(), req.getJobArchive(), req.getPriority());
-
-                        if (rj == null) {
-                            state = JobState.ERROR;
-                        } else if (rj == RemoteJob.WAIT) {
-                            errorDesc = "remote agent is too busy";
-                            state = JobState.RETRYING;
-                        } else {
-                            Log.info("[" + req.getJobName() + "] Scheduled.");
-                            state = JobState.RUNNING;
-                        }
-                    } catch (IOException | HttpIfaceException e1) {
-                        errorDesc = "couldn't schedule with remote agent (" + e1.getMessage() + ")";
-                        state = JobState.RETRYING;
-                    }
-                    break;
-                case RUNNING:
-                    state = rj.isFinished() ? JobState.PROCESSED : JobState.RUNNING;
-                    break;
-                case PROCESSED:
-                    try {
-                        result = processJobResult(req, rj, resultsFldr);
-                        state = JobState.DONE;
-                    } catch (Exception e) {
-                        errorDesc = "couldn't process job result (" + e.getMessage() + "), rerunning the whole job";
-                        state = JobState.RETRYING;
+                scheduler.createJobArchive(req);
+            } catch (Exception e) {
+                // Whatever part of the archive was written
+                req.getJobArchive().delete();
+                archiveDropped();
+                error("Couldn't create the job archive (" + e.getMessage() + ")");
+                return;
+            }
+            synchronized (this) {
+                hasArchive = true;
+            }
+            becomeReady();
+        }
+
+        private synchronized void becomeReady() {
+            extraInfo = null;
+            setState(JobState.READY);
+            ready(this);
+        }
+
+        public synchronized void scheduled(RemoteJob rj) {
+            this.rj = rj;
+            if (rj == null) {
+                // The agent has refused the job, it would refuse it again
+                setState(JobState.ERROR);
+            } else if (rj == RemoteJob.WAIT) {
+                retry("remote agent is too busy");
+            } else {
+                Log.info("[" + req.getJobName() + "] Scheduled.");
+                dropArchive();
+                setState(JobState.RUNNING);
+                rj.setFinishedListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        executor.execute(Job.this::processResult);
                     }
-                    break;
-                case ERROR:
-                    break;
-                case DONE:
-                    break;
-                }
-            } finally {
-                ready = true;
+                });
+            }
+        }
+
+        public synchronized void notScheduled(Exception e) {
+            retry("couldn't schedule with remote agent (" + e.getMessage() + ")");
+        }
+
+        private synchronized void processResult() {
+            if (state != JobState.RUNNING)
+                return;
+            if (rj.isMissing()) {
+                retry("the agent has lost the job");
+                return;
+            }
+            setState(JobState.PROCESSED);
+            try {
+                result = processJobResult(req, rj, resultsFldr);
+                setState(JobState.DONE);
+            } catch (Exception e) {
+                retry("couldn't process job result (" + e.getMessage() + "), rerunning the whole job");
+            }
+        }
+
+        private void retry(String errorDesc) {
+            if (retries > MAX_RETRIES) {
+                error("Couldn't schedule a job at all after " + MAX_RETRIES + " retries.");
+                return;
             }
+            long retryTime = (long) (Math.random() * 10000);
+            ++retries;
+            extraInfo = errorDesc + ", retrying in " + retryTime + "ms.";
+            setState(JobState.RETRY);
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (hasArchive())
+                        becomeReady();
+                    else
+                        needArchive(Job.this);
+                }
+            }, retryTime, TimeUnit.MILLISECONDS);
         }
 
-        public boolean isReady() {
-            return ready;
+        private synchronized boolean hasArchive() {
+            return hasArchive;
         }
 
-        public boolean isDone() {
-            return state == JobState.DONE || state == JobState.ERROR;
+        private void dropArchive() {
+            if (!hasArchive)
+                return;
+            req.getJobArchive().delete();
+            hasArchive = false;
+            archiveDropped();
         }
 
-        public void iterate(ScheduledExecutorService executor) {
-            ready = false;
-            executor.execute(this);
+        private synchronized void error(String extraInfo) {
+            this.extraInfo = extraInfo;
+            setState(JobState.ERROR);
         }
     }
 
-    private List<Job> scheduleJobs(AgentConnection agent, TestScheduler scheduler, File baseFldr,
-            ScheduledExecutorService executor) throws IOException {
+    /**
+     * Schedules the jobs that are ready with one request to the agent rather
+     * than a request per job.
+     */
+    private void scheduleBatch(List<Job> batch) {
+        try {
+            List<AgentConnection.Submission> submissions = new ArrayList<AgentConnection.Submission>();
+            for (Job job : batch) {
+                submissions.add(new AgentConnection.Submission(job.req.getJobName(), job.req.getJobArchive(),
+                        job.req.getPriority(), job.req.getSharedAssets()));
+            }
+            List<RemoteJob> remoteJobs = agent.scheduleJobs(submissions);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).scheduled(remoteJobs.get(i));
+            }
+        } catch (IOException | HttpIfaceException e) {
+            for (Job job : batch) {
+                job.notScheduled(e);
+            }
+        }
+    }
+
+    private List<JobRequest> generateJobRequests(TestScheduler scheduler, File baseFldr) throws IOException {
         File requestsFldr = new File(baseFldr, "requests");
-        File resultsFldr = new File(baseFldr, "results");
+        resultsFldr = new File(baseFldr, "results");
         if (requestsFldr.exists())
             FileUtils.forceDelete(requestsFldr);
         if (resultsFldr.exists())
@@ -307,12 +514,7 @@ public class TestRunner {
         requestsFldr.mkdirs();
         resultsFldr.mkdirs();
 
-        List<Job> jobs = new ArrayList<Job>();
-        List<JobRequest> requests = scheduler.generateJobRequests(requestsFldr);
-        for (JobRequest jobRequest : requests) {
-            jobs.add(new Job(agent, jobRequest, resultsFldr));
-        }
-        return jobs;
+        return scheduler.generateJobRequests(requestsFldr);
     }
 
     private JobResult processJobResult(JobRequest jobRequest, RemoteJob job, File resultsFldr)
@@ -2,7 +2,10 @@ package testrunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public interface TestScheduler {
 
@@ -10,11 +13,13 @@ public interface TestScheduler {
         private String jobName;
         private File jobArchive;
         private int priority;
+        private Map<String, File> sharedAssets;
 
         public JobRequest(String jobName, File jobArchive, int priority) {
             this.jobName = jobName;
             this.jobArchive = jobArchive;
             this.priority = priority;
+            this.sharedAssets = new HashMap<String, File>();
         }
 
         public String getJobName() {
@@ -28,6 +33,18 @@ public interface TestScheduler {
         public int getPriority() {
             return priority;
         }
+
+        /**
+         * The files the job archive refers to by id in its manifest.json, these
+         * are uploaded separately and only once.
+         */
+        public Map<String, File> getSharedAssets() {
+            return sharedAssets;
+        }
+
+        public void addSharedAsset(String id, File file) {
+            sharedAssets.put(id, file);
+        }
     }
 
     public static class JobResult {
@@ -58,15 +75,49 @@ public interface TestScheduler {
         }
     }
 
+    /**
+     * Gets to the files the agent keeps after the job, i.e. the outputs that
+     * were only sent back as digests. The agent keeps these for a while only.
+     */
+    public static interface Fetcher {
+        /**
+         * Downloads the file, the agent drops it once it's sent.
+         */
+        void fetch(String ref, File dest) throws IOException;
+
+        /**
+         * Tells the agent the file is not needed.
+         */
+        void release(String ref) throws IOException;
+    }
+
     List<JobRequest> generateJobRequests(File requestsFldr);
 
     void createJobArchive(JobRequest jobRequest);
 
     JobResult processResult(JobRequest jobRequest, File resultArchive);
 
+    /**
+     * Called when a job is finished for good, the jobs returned are run as
+     * part of the same run. This lets a scheduler decide what to run next
+     * from the results it already has.
+     * 
+     * @param result
+     *            null if the job has failed
+     */
+    default List<JobRequest> followUp(JobRequest jobRequest, JobResult result) {
+        return Collections.emptyList();
+    }
+
     void finish(List<JobResult> results) throws IOException;
 
     void processError(JobRequest jobRequest);
 
     void init(File baseFldr);
+
+    /**
+     * Called before init.
+     */
+    default void setFetcher(Fetcher fetcher) {
+    }
 }
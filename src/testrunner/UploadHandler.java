@@ -7,6 +7,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 
+/**
+ * Stores an uploaded file, with '?shared=true' the file is stored by its
+ * content hash so the id is the same as the one the client has computed.
+ */
 public class UploadHandler implements BaseAgent.Handler {
 
     private FileStore files;
@@ -19,7 +23,12 @@ public class UploadHandler implements BaseAgent.Handler {
     public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
         if ("POST".equals(request.getMethod())) {
             Part part = request.getPart("file");
-            String id = files.addAsInputStream(part.getInputStream());
+            String id;
+            if ("true".equals(request.getParameter("shared"))) {
+                id = files.addSharedAsInputStream(part.getInputStream());
+            } else {
+                id = files.addAsInputStream(part.getInputStream());
+            }
             String txt = "{\"id\":\"" + id + "\"}";
 
             response.getWriter().println(txt);
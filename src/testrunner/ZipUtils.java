@@ -1,27 +1,47 @@
 package testrunner;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 
 public class ZipUtils {
 
     public static void compressDir(File dir, File output) throws IOException {
-        try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(output))) {
+        compressDir(dir, output, Collections.<String>emptySet());
+    }
+
+    public static void compressDir(File dir, File output, Set<String> exclude) throws IOException {
+        try (OutputStream out = new FileOutputStream(output)) {
+            compressDir(dir, out, exclude);
+        }
+    }
+
+    /**
+     * Writes the archive to the stream, the stream is left open.
+     */
+    public static void compressDir(File dir, OutputStream out, Set<String> exclude) throws IOException {
+        // Closing the zip stream ends its deflater, the shield keeps the
+        // caller's stream open
+        try (ZipOutputStream os = new ZipOutputStream(new CloseShieldOutputStream(out))) {
             File[] listFiles = dir.listFiles();
             for (File file2 : listFiles) {
-                if (!file2.isFile())
+                if (!file2.isFile() || exclude.contains(file2.getName()))
                     continue;
                 os.putNextEntry(new ZipEntry(file2.getName()));
                 try (InputStream is = new FileInputStream(file2)) {
@@ -37,33 +57,15 @@ public class ZipUtils {
             return null;
         if (filePath == null)
             return null;
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            String result = null;
-            while (zipEntry != null) {
-                if (filePath.equals(zipEntry.getName())) {
-                    result = IOUtils.toString(zis);
-                }
-                zipEntry = zis.getNextEntry();
-            }
-            zis.closeEntry();
-            return result;
+        try (Reader reader = new Reader(zipFile)) {
+            return reader.getFileAsString(filePath);
         }
     }
 
     public static boolean extractFileTo(File zipFile, String filePath, File toFile) throws IOException {
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                if (filePath.equals(zipEntry.getName())) {
-                    FileUtils.copyToFile(zis, toFile);
-                    return true;
-                }
-                zipEntry = zis.getNextEntry();
-            }
-            zis.closeEntry();
+        try (Reader reader = new Reader(zipFile)) {
+            return reader.extractFileTo(filePath, toFile);
         }
-        return false;
     }
     
     public static enum CompareFilesStatus {
@@ -71,36 +73,11 @@ public class ZipUtils {
     }
     
     public static CompareFilesStatus compareFiles(File zipFile, String fileAPath, String fileBPath) throws IOException {
-        try (ZipInputStream zisA = new ZipInputStream(new FileInputStream(zipFile)); ZipInputStream zisB = new ZipInputStream(new FileInputStream(zipFile))) {
-            ZipEntry zipEntryA = findZipEntry(fileAPath, zisA);
-            if (zipEntryA == null) {
-                return CompareFilesStatus.FILE_A_NOT_FOUND;
-            }
-            ZipEntry zipEntryB = findZipEntry(fileBPath, zisB);
-            if (zipEntryB == null) {
-                zisA.closeEntry();
-                return CompareFilesStatus.FILE_B_NOT_FOUND;
-            }
-            boolean equals = IOUtils.contentEquals(zisA, zisB);
-            
-            zisA.closeEntry();
-            zisB.closeEntry();
-            
-            return equals ? CompareFilesStatus.EQUAL : CompareFilesStatus.NON_EQUAL;
+        try (Reader reader = new Reader(zipFile)) {
+            return reader.compareFiles(fileAPath, fileBPath);
         }
     }
 
-    private static ZipEntry findZipEntry(String filePath, ZipInputStream zis) throws IOException {
-        ZipEntry zipEntryA = null;
-        do {
-            zipEntryA = zis.getNextEntry();
-            if (zipEntryA != null && filePath.equals(zipEntryA.getName())) {
-                return zipEntryA;
-            }
-        } while(zipEntryA != null);
-        return null;
-    }
-
     public static void createArchive(Map<String, Object> map, File output) throws IOException {
         try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(output))) {
             Set<Map.Entry<String, Object>> entrySet = map.entrySet();
@@ -121,27 +98,23 @@ public class ZipUtils {
     }
 
     public static long getFileSize(File zipFile, String filePath) throws IOException {
-        long ret = -1;
-        byte[] b = new byte[1024];
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                if (filePath.equals(zipEntry.getName())) {
-                    long size = 0;
-                    int read = 0;
-                    while ((read = zis.read(b)) != -1)
-                        size += read;
-                    ret = size;
-                }
-                zipEntry = zis.getNextEntry();
-            }
-            zis.closeEntry();
+        try (Reader reader = new Reader(zipFile)) {
+            return reader.getFileSize(filePath);
         }
-        return ret;
     }
 
     public static void extractAll(File zipFile, File tgtFolder) throws IOException {
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
+        try (InputStream is = new FileInputStream(zipFile)) {
+            extractAll(is, tgtFolder);
+        }
+    }
+
+    /**
+     * Extracts the archive as it's read from the stream, i.e. straight from
+     * the network.
+     */
+    public static void extractAll(InputStream is, File tgtFolder) throws IOException {
+        try (ZipInputStream zis = new ZipInputStream(is)) {
             ZipEntry zipEntry = zis.getNextEntry();
             while (zipEntry != null) {
                 FileUtils.copyToFile(zis, new File(tgtFolder, zipEntry.getName()));
@@ -152,17 +125,79 @@ public class ZipUtils {
     }
 
     public static boolean containsFile(File zipFile, String filePath) throws IOException {
-        boolean ret = false;
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                if (filePath.equals(zipEntry.getName())) {
-                    ret = true;
-                }
-                zipEntry = zis.getNextEntry();
+        try (Reader reader = new Reader(zipFile)) {
+            return reader.containsFile(filePath);
+        }
+    }
+
+    /**
+     * Reads the entries of an archive in any order going through its central
+     * directory, only the entries asked for are inflated. Meant to be opened
+     * once for all the lookups in the same archive.
+     */
+    public static class Reader implements Closeable {
+        private ZipFile zipFile;
+
+        public Reader(File file) throws IOException {
+            this.zipFile = new ZipFile(file);
+        }
+
+        public boolean containsFile(String filePath) {
+            return zipFile.getEntry(filePath) != null;
+        }
+
+        /**
+         * @return the uncompressed size of the entry or -1 if there's no such
+         *         entry
+         */
+        public long getFileSize(String filePath) throws IOException {
+            ZipEntry entry = zipFile.getEntry(filePath);
+            if (entry == null)
+                return -1;
+            if (entry.getSize() != -1)
+                return entry.getSize();
+            try (InputStream is = zipFile.getInputStream(entry)) {
+                return IOUtils.skip(is, Long.MAX_VALUE);
+            }
+        }
+
+        public String getFileAsString(String filePath) throws IOException {
+            ZipEntry entry = zipFile.getEntry(filePath);
+            if (entry == null)
+                return null;
+            try (InputStream is = zipFile.getInputStream(entry)) {
+                return IOUtils.toString(is);
             }
-            zis.closeEntry();
         }
-        return ret;
+
+        public boolean extractFileTo(String filePath, File toFile) throws IOException {
+            ZipEntry entry = zipFile.getEntry(filePath);
+            if (entry == null)
+                return false;
+            try (InputStream is = zipFile.getInputStream(entry)) {
+                FileUtils.copyToFile(is, toFile);
+            }
+            return true;
+        }
+
+        public CompareFilesStatus compareFiles(String fileAPath, String fileBPath) throws IOException {
+            ZipEntry entryA = zipFile.getEntry(fileAPath);
+            if (entryA == null)
+                return CompareFilesStatus.FILE_A_NOT_FOUND;
+            ZipEntry entryB = zipFile.getEntry(fileBPath);
+            if (entryB == null)
+                return CompareFilesStatus.FILE_B_NOT_FOUND;
+            if (entryA.getSize() != -1 && entryB.getSize() != -1 && entryA.getSize() != entryB.getSize())
+                return CompareFilesStatus.NON_EQUAL;
+            try (InputStream isA = zipFile.getInputStream(entryA); InputStream isB = zipFile.getInputStream(entryB)) {
+                return IOUtils.contentEquals(isA, isB) ? CompareFilesStatus.EQUAL : CompareFilesStatus.NON_EQUAL;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipFile.close();
+        }
     }
+
 }